@@ -0,0 +1,123 @@
+package us.salus.loadtest;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Builds user documents and history entries shaped like what the frontend and
+ * the Gemini service actually send. Everything is derived from the supplied
+ * {@link Random}, so a fixed seed reproduces the same data set.
+ */
+public class HistoryGenerator {
+
+    private static final String[] MEALS = {
+            "Oatmeal with berries", "Chicken rice bowl", "Greek yogurt", "Turkey sandwich",
+            "Salmon and quinoa", "Protein shake", "Pasta bolognese", "Veggie stir fry" };
+    private static final String[] QUESTIONS = {
+            "How much protein should I eat after a long run?",
+            "Plan my meals for a rest day",
+            "Was my calorie deficit too big this week?",
+            "What should I eat before an early workout?" };
+    private static final String[] SPORTS = { "Run", "Ride", "Swim", "WeightTraining", "Walk" };
+
+    private final Random random;
+    private final Instant now;
+
+    public HistoryGenerator(Random random, Instant now) {
+        this.random = random;
+        this.now = now;
+    }
+
+    /**
+     * History length for one user: log-normal around the median, capped at max,
+     * so most users are light and a handful carry very long histories.
+     */
+    int historySize(int median, int max) {
+        double size = median * Math.exp(random.nextGaussian());
+        return (int) Math.min(max, Math.round(size));
+    }
+
+    Map<String, Object> user(long id, int historySize) {
+        Map<String, Object> user = new LinkedHashMap<>();
+        user.put("name", LoadTest.userName(id));
+        user.put("id", id);
+        user.put("age", 20 + random.nextInt(40));
+        user.put("weight", 50 + random.nextInt(50));
+        user.put("height", 150 + random.nextInt(45));
+        user.put("fitnessGoal", "maintain");
+
+        List<Object> calories = new ArrayList<>();
+        List<Object> activities = new ArrayList<>();
+        List<Object> meals = new ArrayList<>();
+        List<Object> conversations = new ArrayList<>();
+        for (int i = 0; i < historySize; i++) {
+            Instant at = pastInstant(historySize, i);
+            calories.add(calories(at));
+            activities.add(activity(at));
+            meals.add(meal(at));
+            conversations.add(conversation(at));
+        }
+        user.put("historicalCalories", calories);
+        user.put("historicalActivities", activities);
+        user.put("historicalMeals", meals);
+        user.put("conversationHistory", conversations);
+        return user;
+    }
+
+    Map<String, Object> calories(Instant at) {
+        Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("date", at.toString());
+        entry.put("caloriesBurned", 1800 + random.nextInt(1500));
+        entry.put("caloriesConsumed", 1500 + random.nextInt(1800));
+        return entry;
+    }
+
+    Map<String, Object> activity(Instant at) {
+        Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("name", "Morning session");
+        entry.put("type", SPORTS[random.nextInt(SPORTS.length)]);
+        entry.put("sportType", SPORTS[random.nextInt(SPORTS.length)]);
+        entry.put("startDate", at.toString());
+        entry.put("startDateLocal", at.toString());
+        entry.put("timezone", "(GMT-05:00) America/New_York");
+        entry.put("utcOffset", -18000);
+        entry.put("kilojoules", 200 + random.nextInt(1200));
+        entry.put("averageHeartrate", 110 + random.nextInt(50));
+        entry.put("maxHeartrate", 160 + random.nextInt(35));
+        entry.put("sufferScore", random.nextInt(200));
+        return entry;
+    }
+
+    Map<String, Object> meal(Instant at) {
+        Map<String, Object> macros = new LinkedHashMap<>();
+        macros.put("carbs", random.nextInt(120));
+        macros.put("protein", random.nextInt(60));
+        macros.put("fats", random.nextInt(50));
+
+        Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("name", MEALS[random.nextInt(MEALS.length)]);
+        entry.put("timestamp", at.toString());
+        entry.put("macronutrients", macros);
+        return entry;
+    }
+
+    Map<String, Object> conversation(Instant at) {
+        Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("timestamp", at.toString());
+        entry.put("message", QUESTIONS[random.nextInt(QUESTIONS.length)]);
+        // Model responses are the bulk of a conversation entry
+        entry.put("response", "Sure! ".repeat(40 + random.nextInt(200)));
+        return entry;
+    }
+
+    /** Spreads {@code total} entries over the past, oldest first, roughly a few per day. */
+    private Instant pastInstant(int total, int index) {
+        long minutesBack = (long) (total - index) * 480 + random.nextInt(480);
+        return now.minus(Duration.ofMinutes(minutesBack));
+    }
+}
@@ -0,0 +1,75 @@
+package us.salus.loadtest;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects raw latency samples for one operation on one worker thread. Workers
+ * never share a recorder; results are merged after the run, so recording is
+ * just an array store.
+ */
+public class LatencyRecorder {
+
+    private long[] latenciesNanos = new long[1024];
+    private int count;
+    private long errors;
+    // 503s from the service's concurrency limiter, counted apart from real errors
+    private long shed;
+    private long responseBytes;
+
+    void record(long nanos, int bytes, int status) {
+        if (status == 503) {
+            shed++;
+            return;
+        }
+        if (status < 200 || status >= 400) {
+            errors++;
+            return;
+        }
+        if (count == latenciesNanos.length) {
+            latenciesNanos = Arrays.copyOf(latenciesNanos, count * 2);
+        }
+        latenciesNanos[count++] = nanos;
+        responseBytes += bytes;
+    }
+
+    void merge(LatencyRecorder other) {
+        if (count + other.count > latenciesNanos.length) {
+            latenciesNanos = Arrays.copyOf(latenciesNanos, count + other.count);
+        }
+        System.arraycopy(other.latenciesNanos, 0, latenciesNanos, count, other.count);
+        count += other.count;
+        errors += other.errors;
+        shed += other.shed;
+        responseBytes += other.responseBytes;
+    }
+
+    Map<String, Object> summarize(double elapsedSeconds) {
+        long[] sorted = Arrays.copyOf(latenciesNanos, count);
+        Arrays.sort(sorted);
+
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("requests", count);
+        summary.put("errors", errors);
+        summary.put("shed", shed);
+        summary.put("throughputPerSec", count / elapsedSeconds);
+        summary.put("meanResponseBytes", count == 0 ? 0 : responseBytes / count);
+        Map<String, Double> latency = new LinkedHashMap<>();
+        latency.put("p50", percentileMillis(sorted, 0.50));
+        latency.put("p90", percentileMillis(sorted, 0.90));
+        latency.put("p99", percentileMillis(sorted, 0.99));
+        latency.put("p999", percentileMillis(sorted, 0.999));
+        latency.put("max", count == 0 ? 0 : sorted[count - 1] / 1e6);
+        summary.put("latencyMillis", latency);
+        return summary;
+    }
+
+    private static double percentileMillis(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
@@ -0,0 +1,237 @@
+package us.salus.loadtest;
+
+import java.io.File;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Seeds the user-service with synthetic users, replays a weighted mix of
+ * requests against it from a fixed number of closed-loop workers, and prints a
+ * JSON report with throughput, latency percentiles and document growth.
+ *
+ * <pre>
+ * mvn -q compile exec:java -Dexec.args="--config=workloads/default.properties --out=report.json"
+ * </pre>
+ */
+public class LoadTest {
+
+    // Far above real Strava athlete ids so seeded users never collide with real ones
+    private static final long FIRST_USER_ID = 9_000_000_000L;
+    private static final int GROWTH_SAMPLE = 20;
+
+    private final LoadTestConfig config;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final HttpClient http = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+    private final List<Long> userIds = new ArrayList<>();
+    private final Map<Long, String> sessions = new LinkedHashMap<>();
+
+    LoadTest(LoadTestConfig config) {
+        this.config = config;
+    }
+
+    static String userName(long id) {
+        return "loadtest" + id;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTestConfig config = LoadTestConfig.fromArgs(args);
+        LoadTest loadTest = new LoadTest(config);
+        try (StravaStub stub = new StravaStub(config.stravaStubPort, loadTest.mapper)) {
+            Map<String, Object> report = loadTest.run();
+            String json = loadTest.mapper.enable(SerializationFeature.INDENT_OUTPUT).writeValueAsString(report);
+            if (config.out != null) {
+                loadTest.mapper.writeValue(new File(config.out), report);
+            }
+            System.out.println(json);
+        }
+    }
+
+    Map<String, Object> run() throws Exception {
+        seed();
+        long docBytesBefore = sampleDocumentBytes();
+
+        ExecutorService pool = Executors.newFixedThreadPool(config.threads);
+        long start = System.nanoTime();
+        long measureFrom = start + Duration.ofSeconds(config.warmupSeconds).toNanos();
+        long end = measureFrom + Duration.ofSeconds(config.durationSeconds).toNanos();
+        List<Future<Map<Operation, LatencyRecorder>>> workers = new ArrayList<>();
+        for (int i = 0; i < config.threads; i++) {
+            Random random = new Random(config.seed + 1 + i);
+            workers.add(pool.submit(() -> work(random, measureFrom, end)));
+        }
+
+        Map<Operation, LatencyRecorder> merged = new EnumMap<>(Operation.class);
+        LatencyRecorder total = new LatencyRecorder();
+        for (Future<Map<Operation, LatencyRecorder>> worker : workers) {
+            for (Map.Entry<Operation, LatencyRecorder> e : worker.get().entrySet()) {
+                merged.computeIfAbsent(e.getKey(), k -> new LatencyRecorder()).merge(e.getValue());
+                total.merge(e.getValue());
+            }
+        }
+        pool.shutdown();
+        double elapsed = config.durationSeconds;
+
+        Map<String, Object> operations = new LinkedHashMap<>();
+        merged.forEach((op, recorder) -> operations.put(op.key, recorder.summarize(elapsed)));
+
+        long docBytesAfter = sampleDocumentBytes();
+        Map<String, Object> growth = new LinkedHashMap<>();
+        growth.put("sampledUsers", Math.min(GROWTH_SAMPLE, userIds.size()));
+        growth.put("meanBytesBefore", docBytesBefore);
+        growth.put("meanBytesAfter", docBytesAfter);
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("timestamp", Instant.now().toString());
+        report.put("baseUrl", config.baseUrl);
+        report.put("seed", config.seed);
+        report.put("users", config.users);
+        report.put("threads", config.threads);
+        report.put("durationSeconds", config.durationSeconds);
+        report.put("mix", config.mix);
+        report.put("total", total.summarize(elapsed));
+        report.put("operations", operations);
+        report.put("documentGrowth", growth);
+        return report;
+    }
+
+    /** Creates every user with its full history in one request, then logs each one in through the stub. */
+    private void seed() throws Exception {
+        Random random = new Random(config.seed);
+        HistoryGenerator generator = new HistoryGenerator(random, Instant.now());
+        for (int i = 0; i < config.users; i++) {
+            long id = FIRST_USER_ID + i;
+            int size = generator.historySize(config.historyMedian, config.historyMax);
+            HttpResponse<byte[]> created = send(post("/api/users", generator.user(id, size)));
+            if (created.statusCode() != 201) {
+                throw new IllegalStateException("Seeding user " + id + " failed: " + created.statusCode());
+            }
+            String session = login(id);
+            if (session == null) {
+                throw new IllegalStateException("No session cookie for user " + id
+                        + "; is the service pointed at the Strava stub and FRONTEND_URL set?");
+            }
+            userIds.add(id);
+            sessions.put(id, session);
+        }
+    }
+
+    private Map<Operation, LatencyRecorder> work(Random random, long measureFrom, long end) {
+        HistoryGenerator generator = new HistoryGenerator(random, Instant.now());
+        Map<Operation, LatencyRecorder> recorders = new EnumMap<>(Operation.class);
+        int totalWeight = config.mix.values().stream().mapToInt(Integer::intValue).sum();
+
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            Operation op = pick(random, totalWeight);
+            long id = userIds.get(random.nextInt(userIds.size()));
+            int status;
+            int bytes;
+            try {
+                HttpResponse<byte[]> response = send(request(op, id, generator));
+                status = response.statusCode();
+                bytes = response.body().length;
+            } catch (Exception e) {
+                status = -1;
+                bytes = 0;
+            }
+            long latency = System.nanoTime() - now;
+            if (now >= measureFrom) {
+                recorders.computeIfAbsent(op, k -> new LatencyRecorder()).record(latency, bytes, status);
+            }
+        }
+        return recorders;
+    }
+
+    private Operation pick(Random random, int totalWeight) {
+        int roll = random.nextInt(totalWeight);
+        for (Map.Entry<Operation, Integer> e : config.mix.entrySet()) {
+            roll -= e.getValue();
+            if (roll < 0) {
+                return e.getKey();
+            }
+        }
+        throw new IllegalStateException("Empty workload mix");
+    }
+
+    private HttpRequest request(Operation op, long id, HistoryGenerator generator) throws Exception {
+        Instant now = Instant.now();
+        switch (op) {
+            case ME:
+                return get("/api/users/me").header("Cookie", "salus_session=" + sessions.get(id)).build();
+            case CONVERSATION_APPEND:
+                return post("/api/users/id/" + id + "/conversations", generator.conversation(now));
+            case MEAL_POST:
+                return post("/api/users/id/" + id + "/meals", generator.meal(now));
+            case RANGE_QUERY:
+                return get("/api/users/id/" + id + "/conversations/range"
+                        + "?startDate=" + encode(now.minus(Duration.ofDays(30)).toString())
+                        + "&endDate=" + encode(now.toString())).build();
+            case CALLBACK:
+                return get("/auth/callback?code=" + id).build();
+            default:
+                throw new IllegalArgumentException(op.toString());
+        }
+    }
+
+    private String login(long id) throws Exception {
+        HttpResponse<byte[]> response = send(get("/auth/callback?code=" + id).build());
+        for (String cookie : response.headers().allValues("Set-Cookie")) {
+            if (cookie.startsWith("salus_session=")) {
+                // The value ends at the first attribute, if there are any
+                return cookie.split(";", 2)[0].substring("salus_session=".length());
+            }
+        }
+        return null;
+    }
+
+    private long sampleDocumentBytes() throws Exception {
+        int sample = Math.min(GROWTH_SAMPLE, userIds.size());
+        long total = 0;
+        for (int i = 0; i < sample; i++) {
+            total += send(get("/api/users/id/" + userIds.get(i)).build()).body().length;
+        }
+        return sample == 0 ? 0 : total / sample;
+    }
+
+    private HttpRequest.Builder get(String path) {
+        return HttpRequest.newBuilder(URI.create(config.baseUrl + path)).timeout(Duration.ofSeconds(30));
+    }
+
+    private HttpRequest post(String path, Object body) throws Exception {
+        return HttpRequest.newBuilder(URI.create(config.baseUrl + path))
+                .timeout(Duration.ofSeconds(30))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(mapper.writeValueAsString(body)))
+                .build();
+    }
+
+    // Bodies are kept as bytes so the recorded sizes are what went over the wire
+    private HttpResponse<byte[]> send(HttpRequest request) throws Exception {
+        return http.send(request, HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,69 @@
+package us.salus.loadtest;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Run settings, read from a properties file and overridden by {@code --key=value}
+ * arguments. See {@code workloads/default.properties} for every key.
+ */
+public class LoadTestConfig {
+
+    final String baseUrl;
+    final int stravaStubPort;
+    final long seed;
+    final int users;
+    final int historyMedian;
+    final int historyMax;
+    final int threads;
+    final int warmupSeconds;
+    final int durationSeconds;
+    final Map<Operation, Integer> mix;
+    final String out;
+
+    private LoadTestConfig(Properties props) {
+        this.baseUrl = props.getProperty("baseUrl", "http://localhost:8080");
+        this.stravaStubPort = Integer.parseInt(props.getProperty("stravaStubPort", "9099"));
+        this.seed = Long.parseLong(props.getProperty("seed", "42"));
+        this.users = Integer.parseInt(props.getProperty("users", "200"));
+        this.historyMedian = Integer.parseInt(props.getProperty("historyMedian", "150"));
+        this.historyMax = Integer.parseInt(props.getProperty("historyMax", "5000"));
+        this.threads = Integer.parseInt(props.getProperty("threads", "16"));
+        this.warmupSeconds = Integer.parseInt(props.getProperty("warmupSeconds", "10"));
+        this.durationSeconds = Integer.parseInt(props.getProperty("durationSeconds", "60"));
+        this.mix = parseMix(props.getProperty("mix", "me:50,conversation:20,meal:15,range:10,callback:5"));
+        this.out = props.getProperty("out");
+    }
+
+    public static LoadTestConfig fromArgs(String[] args) throws IOException {
+        Properties props = new Properties();
+        for (String arg : args) {
+            if (arg.startsWith("--config=")) {
+                try (InputStream in = new FileInputStream(arg.substring("--config=".length()))) {
+                    props.load(in);
+                }
+            }
+        }
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --key=value, got " + arg);
+            }
+            int eq = arg.indexOf('=');
+            props.setProperty(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        return new LoadTestConfig(props);
+    }
+
+    private static Map<Operation, Integer> parseMix(String spec) {
+        Map<Operation, Integer> mix = new EnumMap<>(Operation.class);
+        for (String part : spec.split(",")) {
+            String[] kv = part.trim().split(":");
+            mix.put(Operation.fromKey(kv[0]), Integer.parseInt(kv[1]));
+        }
+        return mix;
+    }
+}
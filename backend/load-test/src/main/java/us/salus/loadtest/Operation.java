@@ -0,0 +1,27 @@
+package us.salus.loadtest;
+
+/**
+ * The request types a workload can be made of.
+ */
+public enum Operation {
+    ME("me"),
+    CONVERSATION_APPEND("conversation"),
+    MEAL_POST("meal"),
+    RANGE_QUERY("range"),
+    CALLBACK("callback");
+
+    final String key;
+
+    Operation(String key) {
+        this.key = key;
+    }
+
+    static Operation fromKey(String key) {
+        for (Operation op : values()) {
+            if (op.key.equals(key)) {
+                return op;
+            }
+        }
+        throw new IllegalArgumentException("Unknown operation in mix: " + key);
+    }
+}
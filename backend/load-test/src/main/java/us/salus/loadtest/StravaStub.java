@@ -0,0 +1,69 @@
+package us.salus.loadtest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal stand-in for the two Strava endpoints the OAuth callback uses. The
+ * authorization code is the athlete id, and the stub echoes it back as the
+ * access token so {@code /athlete} can answer without any shared state.
+ */
+public class StravaStub implements AutoCloseable {
+
+    private final ObjectMapper mapper;
+    private final HttpServer server;
+
+    public StravaStub(int port, ObjectMapper mapper) throws IOException {
+        this.mapper = mapper;
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/oauth/token", this::token);
+        server.createContext("/api/v3/athlete", this::athlete);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    private void token(HttpExchange exchange) throws IOException {
+        JsonNode body = mapper.readTree(exchange.getRequestBody());
+        String code = body.path("code").asText();
+        long now = System.currentTimeMillis() / 1000;
+        respond(exchange, Map.of(
+                "token_type", "Bearer",
+                "expires_at", now + 21600,
+                "expires_in", 21600,
+                "refresh_token", "refresh-" + code,
+                "access_token", code));
+    }
+
+    private void athlete(HttpExchange exchange) throws IOException {
+        String auth = exchange.getRequestHeaders().getFirst("Authorization");
+        long id = Long.parseLong(auth.substring("Bearer ".length()));
+        respond(exchange, Map.of(
+                "id", id,
+                "firstname", LoadTest.userName(id),
+                "lastname", "Load",
+                "weight", 70));
+    }
+
+    private void respond(HttpExchange exchange, Object body) throws IOException {
+        byte[] bytes = mapper.writeValueAsString(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,104 @@
+package us.salus.userservice;
+
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import us.salus.userservice.services.ConcurrencyLimiter;
+import us.salus.userservice.services.ConcurrencyLimiter.Priority;
+
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+/**
+ * Puts the {@link ConcurrencyLimiter} in front of the user and auth routes.
+ * Requests over the limit for their priority are answered with 503 straight
+ * away instead of waiting for a worker, so the ones admitted keep their
+ * latency. Health checks and the other routes are never limited.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class ConcurrencyLimitFilter extends OncePerRequestFilter {
+
+    // Full history reads: a whole user document, a user's whole conversation or meal list, or an export
+    private static final Pattern BULK_READ = Pattern.compile(
+            "/api/users/(id/[^/]+|[^/]+)(/(conversations|conversations/range|meals|export))?");
+
+    private final ConcurrencyLimiter limiter;
+
+    @Autowired
+    public ConcurrencyLimitFilter(ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String path = request.getRequestURI();
+        return !limiter.isEnabled() || !(path.startsWith("/api/users") || path.startsWith("/auth/"));
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        if (!limiter.tryAcquire(classify(request.getMethod(), request.getRequestURI()))) {
+            response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+            response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+            return;
+        }
+        long start = System.nanoTime();
+        boolean async = false;
+        try {
+            chain.doFilter(request, response);
+            if (request.isAsyncStarted()) {
+                // Streamed responses hold their slot until done, but their length says nothing about load
+                request.getAsyncContext().addListener(new ReleaseOnComplete());
+                async = true;
+            }
+        } finally {
+            // Errors are sampled too: a dependency timing out is exactly the overload the limit has to see.
+            // Only the limiter's own 503s stay out, and those return above without taking a slot.
+            if (!async) {
+                limiter.release(System.nanoTime() - start);
+            }
+        }
+    }
+
+    static Priority classify(String method, String path) {
+        if (path.startsWith("/auth/") || path.equals("/api/users/me")) {
+            return Priority.CRITICAL;
+        }
+        if (method.equals("GET") && (path.equals("/api/users") || BULK_READ.matcher(path).matches())) {
+            return Priority.BULK;
+        }
+        return Priority.NORMAL;
+    }
+
+    private class ReleaseOnComplete implements AsyncListener {
+        @Override
+        public void onComplete(AsyncEvent event) {
+            limiter.release(-1);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            event.getAsyncContext().addListener(this);
+        }
+    }
+}
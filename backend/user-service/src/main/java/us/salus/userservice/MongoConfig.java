@@ -1,9 +1,11 @@
 package us.salus.userservice;
 
+import org.springframework.boot.autoconfigure.mongo.MongoClientSettingsBuilderCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.convert.converter.Converter;
 import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import us.salus.userservice.services.RequestProfile;
 
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
@@ -22,6 +24,12 @@ public class MongoConfig {
         return new MongoCustomConversions(converters);
     }
 
+    // Times every command for the request profile and the flight recording
+    @Bean
+    public MongoClientSettingsBuilderCustomizer commandProfiling() {
+        return settings -> settings.addCommandListener(new RequestProfile.MongoListener());
+    }
+
     static class ZonedDateTimeReadConverter implements Converter<Date, ZonedDateTime> {
         @Override
         public ZonedDateTime convert(Date date) {
@@ -0,0 +1,76 @@
+package us.salus.userservice;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import us.salus.userservice.services.ReadRouter;
+
+import java.io.IOException;
+
+/**
+ * Gives a client read-your-writes across replicas. Every mutating request
+ * stamps a short-lived cookie, and while that cookie is younger than the
+ * secondary staleness bound all of the client's reads go to the primary, on
+ * whichever node serves them.
+ */
+@Component
+public class ReadYourWritesFilter extends OncePerRequestFilter {
+
+    static final String COOKIE = "salus_last_write";
+
+    private final ReadRouter readRouter;
+
+    @Autowired
+    public ReadYourWritesFilter(ReadRouter readRouter) {
+        this.readRouter = readRouter;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        long now = System.currentTimeMillis();
+        if (isWrite(request)) {
+            Cookie cookie = new Cookie(COOKIE, Long.toString(now));
+            cookie.setMaxAge((int) readRouter.getMaxStaleness().toSeconds());
+            cookie.setSecure(true);
+            cookie.setHttpOnly(true);
+            cookie.setPath("/");
+            response.addCookie(cookie);
+            readRouter.pinRequestToPrimary();
+        } else if (wroteRecently(request, now)) {
+            readRouter.pinRequestToPrimary();
+        }
+
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            readRouter.clearRequest();
+        }
+    }
+
+    private static boolean isWrite(HttpServletRequest request) {
+        String method = request.getMethod();
+        return method.equals("POST") || method.equals("PUT") || method.equals("DELETE") || method.equals("PATCH");
+    }
+
+    private boolean wroteRecently(HttpServletRequest request, long now) {
+        if (request.getCookies() == null) {
+            return false;
+        }
+        for (Cookie cookie : request.getCookies()) {
+            if (COOKIE.equals(cookie.getName())) {
+                try {
+                    return now - Long.parseLong(cookie.getValue()) < readRouter.getMaxStaleness().toMillis();
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,194 @@
+package us.salus.userservice;
+
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+import us.salus.userservice.services.FlightRecorderService;
+import us.salus.userservice.services.RequestProfile;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * Profiles the API and auth routes: each request gets a {@link RequestProfile}
+ * that ends up as a JFR event and, if the request was slow, in a flight
+ * recording dump. Runs inside the {@link ConcurrencyLimitFilter} so shed
+ * requests aren't profiled, and skips the ops routes so downloading a dump
+ * can't trigger another.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 1)
+public class RequestProfilingFilter extends OncePerRequestFilter {
+
+    private final FlightRecorderService flightRecorder;
+
+    @Autowired
+    public RequestProfilingFilter(FlightRecorderService flightRecorder) {
+        this.flightRecorder = flightRecorder;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String path = request.getRequestURI();
+        return !flightRecorder.isEnabled() || path.startsWith("/api/ops/")
+                || !(path.startsWith("/api/") || path.startsWith("/auth/"));
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        RequestProfile profile = RequestProfile.begin(request.getMethod(), request.getRequestURI());
+        CountingResponse counting = new CountingResponse(response);
+        boolean async = false;
+        try {
+            chain.doFilter(request, counting);
+            if (request.isAsyncStarted()) {
+                // Streamed responses are profiled when they complete; their writes happen on other threads
+                request.getAsyncContext().addListener(new FinishOnComplete(profile, request, counting));
+                async = true;
+            }
+        } finally {
+            profile.detach();
+            if (!async) {
+                finish(profile, request, counting);
+            }
+        }
+    }
+
+    private void finish(RequestProfile profile, HttpServletRequest request, CountingResponse response) {
+        response.flushWriter();
+        Object route = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        profile.finish(route == null ? null : route.toString(), userOf(request), response.getStatus(),
+                response.getCount());
+        flightRecorder.onRequestFinished(profile);
+    }
+
+    private static String userOf(HttpServletRequest request) {
+        if (request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE) instanceof Map<?, ?> variables) {
+            Object user = variables.get("id");
+            return user != null ? user.toString() : (String) variables.get("name");
+        }
+        return null;
+    }
+
+    private class FinishOnComplete implements AsyncListener {
+        private final RequestProfile profile;
+        private final HttpServletRequest request;
+        private final CountingResponse response;
+
+        FinishOnComplete(RequestProfile profile, HttpServletRequest request, CountingResponse response) {
+            this.profile = profile;
+            this.request = request;
+            this.response = response;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            finish(profile, request, response);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            event.getAsyncContext().addListener(this);
+        }
+    }
+
+    /** Counts the bytes written to the response body. */
+    static class CountingResponse extends HttpServletResponseWrapper {
+        private volatile long count;
+        private ServletOutputStream stream;
+        private PrintWriter writer;
+
+        CountingResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (stream == null) {
+                ServletOutputStream target = super.getOutputStream();
+                stream = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        target.write(b);
+                        count++;
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        target.write(b, off, len);
+                        count += len;
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        target.flush();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        target.close();
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return target.isReady();
+                    }
+
+                    @Override
+                    public void setWriteListener(WriteListener listener) {
+                        target.setWriteListener(listener);
+                    }
+                };
+            }
+            return stream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            flushWriter();
+            super.flushBuffer();
+        }
+
+        /** Pushes text buffered by {@link #getWriter()} through, so it is both sent and counted. */
+        void flushWriter() {
+            if (writer != null) {
+                writer.flush();
+            }
+        }
+    }
+}
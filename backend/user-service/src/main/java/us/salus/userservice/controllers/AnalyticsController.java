@@ -0,0 +1,83 @@
+package us.salus.userservice.controllers;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import us.salus.userservice.models.AnalyticsSummary.Metric;
+import us.salus.userservice.models.AnalyticsSummary.Window;
+import us.salus.userservice.models.Leaderboard;
+import us.salus.userservice.models.PercentileResponse;
+import us.salus.userservice.services.AnalyticsService;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Percentiles and leaderboards over all users, served from the summaries the
+ * analytics job precomputes. Windows are {@code week}, {@code month} and
+ * {@code all}; metrics are {@code calorie_deficit}, {@code calories_burned},
+ * {@code activity_kilojoules} and {@code activity_count}.
+ */
+@RestController
+@RequestMapping("/api/analytics")
+public class AnalyticsController {
+
+    private final AnalyticsService analyticsService;
+
+    @Autowired
+    public AnalyticsController(AnalyticsService analyticsService) {
+        this.analyticsService = analyticsService;
+    }
+
+    @GetMapping("/{window}/{metric}/percentile")
+    public ResponseEntity<PercentileResponse> getPercentile(
+            @PathVariable String window,
+            @PathVariable String metric,
+            @RequestParam double value) {
+        Optional<PercentileResponse> percentile = parse(window, metric)
+                .flatMap(key -> analyticsService.getPercentile(key.window, key.metric, value));
+        return percentile.map(ResponseEntity::ok)
+                .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
+    @GetMapping("/{window}/{metric}/users/{id}")
+    public ResponseEntity<PercentileResponse> getPercentileForUser(
+            @PathVariable String window,
+            @PathVariable String metric,
+            @PathVariable long id) {
+        Optional<PercentileResponse> percentile = parse(window, metric)
+                .flatMap(key -> analyticsService.getPercentileForUser(key.window, key.metric, id));
+        return percentile.map(ResponseEntity::ok)
+                .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
+    @GetMapping("/{window}/{metric}/leaderboard")
+    public ResponseEntity<List<Leaderboard.Entry>> getLeaderboard(
+            @PathVariable String window,
+            @PathVariable String metric) {
+        Optional<List<Leaderboard.Entry>> leaderboard = parse(window, metric)
+                .flatMap(key -> analyticsService.getLeaderboard(key.window, key.metric));
+        return leaderboard.map(ResponseEntity::ok)
+                .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
+    @PostMapping("/refresh")
+    public ResponseEntity<Void> refresh() {
+        return analyticsService.refreshInBackground()
+                ? ResponseEntity.status(HttpStatus.ACCEPTED).build()
+                : ResponseEntity.status(HttpStatus.CONFLICT).build();
+    }
+
+    private static Optional<SummaryKey> parse(String window, String metric) {
+        try {
+            return Optional.of(new SummaryKey(Window.valueOf(window.toUpperCase()), Metric.valueOf(metric.toUpperCase())));
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+    }
+
+    private record SummaryKey(Window window, Metric metric) {
+    }
+}
@@ -1,9 +1,15 @@
 package us.salus.userservice.controllers;
 
 import java.net.URI;
+import java.time.Duration;
 import java.util.Optional;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -21,18 +27,31 @@ import us.salus.userservice.repositories.UserRepository;
 import us.salus.userservice.services.JWTService;
 import us.salus.userservice.services.StravaAuthService;
 import us.salus.userservice.services.StravaService;
+import us.salus.userservice.services.UserRekeyService;
 
 @RestController
 @RequestMapping("/auth")
 public class AuthController {
 
   private final UserRepository userRepository;
+  private final MongoTemplate mongoTemplate;
   private final JWTService jwtService;
+  private final UserRekeyService userRekey;
+  private final StravaAuthService stravaAuth;
+  private final StravaService strava;
+  private final Duration sessionLifetime;
 
   @Autowired
-  public AuthController(UserRepository userRepository) {
+  public AuthController(UserRepository userRepository, MongoTemplate mongoTemplate, JWTService jwtService,
+      UserRekeyService userRekey, StravaAuthService stravaAuth, StravaService strava,
+      @Value("${salus.jwt.session-lifetime:P7D}") Duration sessionLifetime) {
     this.userRepository = userRepository;
-    this.jwtService = new JWTService();
+    this.mongoTemplate = mongoTemplate;
+    this.jwtService = jwtService;
+    this.userRekey = userRekey;
+    this.stravaAuth = stravaAuth;
+    this.strava = strava;
+    this.sessionLifetime = sessionLifetime;
   }
 
   @GetMapping("/login")
@@ -43,18 +62,19 @@ public class AuthController {
     params.set("response_type", "code");
     params.set("approval_prompt", "force");
     params.set("scope", "read");
-    URI redirect = URI.create("https://www.strava.com/oauth/authorize?" + params.toString());
+    URI redirect = URI.create(stravaAuth.getOauthUrl() + "/authorize?" + params.toString());
     return ResponseEntity.status(HttpStatus.FOUND).location(redirect).build();
   }
 
   @GetMapping("/callback")
   public ResponseEntity<TokenResponse> callback(@RequestParam(value = "code") String code,
       HttpServletResponse response) {
-    TokenResponse token = StravaAuthService.getToken(code);
-    Athlete athlete = StravaService.getAthlete(token.getAccess_token());
+    TokenResponse token = stravaAuth.getToken(code);
+    Athlete athlete = strava.getAthlete(token.getAccess_token());
 
     // Update user in database
     User user;
+    userRekey.ensureMigrated("id", athlete.getId());
     Optional<User> oUser = userRepository.findById(athlete.getId());
     if (oUser.isEmpty()) {
       user = new User();
@@ -68,12 +88,14 @@ public class AuthController {
     } else {
       user = oUser.get();
       user.setToken(token);
-      userRepository.save(user);
+      // Only the token changes; saving the whole user could drop history appended meanwhile
+      mongoTemplate.updateFirst(Query.query(Criteria.where("id").is(user.getId())), Update.update("token", token),
+          User.class);
     }
 
     // Create cookie to store JWT
     Cookie cookie = new Cookie("salus_session", jwtService.createJWT(user));
-    cookie.setMaxAge(60 * 60 * 24 * 7);
+    cookie.setMaxAge((int) sessionLifetime.toSeconds());
     cookie.setSecure(true);
     cookie.setHttpOnly(true);
     cookie.setPath("/");
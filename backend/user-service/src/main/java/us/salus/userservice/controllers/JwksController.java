@@ -0,0 +1,58 @@
+package us.salus.userservice.controllers;
+
+import java.math.BigInteger;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import us.salus.userservice.services.KeyRingService;
+
+/**
+ * Publishes the session verification keys as a JSON Web Key Set so other
+ * services can verify {@code salus_session} tokens locally.
+ */
+@RestController
+public class JwksController {
+
+  private final KeyRingService keyRing;
+
+  @Autowired
+  public JwksController(KeyRingService keyRing) {
+    this.keyRing = keyRing;
+  }
+
+  @GetMapping("/.well-known/jwks.json")
+  public ResponseEntity<Map<String, Object>> jwks() {
+    List<Map<String, String>> keys = keyRing.publishedKeys().stream()
+        .map(key -> Map.of(
+            "kty", "RSA",
+            "use", "sig",
+            "alg", "RS256",
+            "kid", key.kid(),
+            "n", base64Url(key.publicKey().getModulus()),
+            "e", base64Url(key.publicKey().getPublicExponent())))
+        .toList();
+
+    // Keys are published an hour before use, so a few minutes of caching is safe
+    return ResponseEntity.ok()
+        .cacheControl(CacheControl.maxAge(Duration.ofMinutes(5)).cachePublic())
+        .body(Map.of("keys", keys));
+  }
+
+  private static String base64Url(BigInteger value) {
+    byte[] bytes = value.toByteArray();
+    // Drop the sign byte BigInteger adds when the high bit is set
+    if (bytes.length > 1 && bytes[0] == 0) {
+      bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+    }
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+  }
+}
@@ -0,0 +1,125 @@
+package us.salus.userservice.controllers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import us.salus.userservice.models.ProfilingStatus;
+import us.salus.userservice.services.FlightRecorderService;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Optional;
+
+/**
+ * Operator controls for the continuous flight recording: status, start/stop,
+ * on-demand dumps and downloading saved dumps. Every call needs the
+ * {@code X-Ops-Token} header to match {@code salus.ops.token}; while no token
+ * is configured the routes don't exist.
+ */
+@RestController
+@RequestMapping("/api/ops/jfr")
+public class OpsController {
+
+    private static final Logger log = LoggerFactory.getLogger(OpsController.class);
+
+    static final String TOKEN_HEADER = "X-Ops-Token";
+
+    private final FlightRecorderService flightRecorder;
+    private final byte[] token;
+
+    @Autowired
+    public OpsController(FlightRecorderService flightRecorder, @Value("${salus.ops.token:}") String token) {
+        this.flightRecorder = flightRecorder;
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @GetMapping
+    public ResponseEntity<ProfilingStatus> getStatus(@RequestHeader(value = TOKEN_HEADER, required = false) String auth) {
+        Optional<ResponseEntity<ProfilingStatus>> denied = authorize(auth);
+        if (denied.isPresent()) {
+            return denied.get();
+        }
+        return ResponseEntity.ok(flightRecorder.getStatus());
+    }
+
+    @PostMapping("/start")
+    public ResponseEntity<ProfilingStatus> start(@RequestHeader(value = TOKEN_HEADER, required = false) String auth) {
+        Optional<ResponseEntity<ProfilingStatus>> denied = authorize(auth);
+        if (denied.isPresent()) {
+            return denied.get();
+        }
+        flightRecorder.start();
+        ProfilingStatus status = flightRecorder.getStatus();
+        return status.isRecording()
+                ? ResponseEntity.ok(status)
+                : ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(status);
+    }
+
+    @PostMapping("/stop")
+    public ResponseEntity<ProfilingStatus> stop(@RequestHeader(value = TOKEN_HEADER, required = false) String auth) {
+        Optional<ResponseEntity<ProfilingStatus>> denied = authorize(auth);
+        if (denied.isPresent()) {
+            return denied.get();
+        }
+        flightRecorder.stop();
+        return ResponseEntity.ok(flightRecorder.getStatus());
+    }
+
+    @PostMapping("/dumps")
+    public ResponseEntity<String> dump(@RequestHeader(value = TOKEN_HEADER, required = false) String auth) {
+        Optional<ResponseEntity<String>> denied = authorize(auth);
+        if (denied.isPresent()) {
+            return denied.get();
+        }
+        if (!flightRecorder.isRecording()) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
+        try {
+            String name = flightRecorder.dumpNow();
+            return ResponseEntity.created(URI.create("/api/ops/jfr/dumps/" + name)).body(name);
+        } catch (Exception e) {
+            log.error("Could not save flight recording", e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    @GetMapping("/dumps/{name}")
+    public ResponseEntity<Resource> download(@RequestHeader(value = TOKEN_HEADER, required = false) String auth,
+                                             @PathVariable String name) {
+        Optional<ResponseEntity<Resource>> denied = authorize(auth);
+        if (denied.isPresent()) {
+            return denied.get();
+        }
+        Optional<Path> file = flightRecorder.resolveDump(name);
+        if (file.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok()
+                .contentType(name.endsWith(".json") ? MediaType.APPLICATION_JSON : MediaType.APPLICATION_OCTET_STREAM)
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment().filename(name).build().toString())
+                .body(new FileSystemResource(file.get()));
+    }
+
+    /** Empty if the caller may proceed, otherwise the response to refuse them with. */
+    private <T> Optional<ResponseEntity<T>> authorize(String auth) {
+        if (token.length == 0) {
+            return Optional.of(ResponseEntity.notFound().build());
+        }
+        if (auth == null || !MessageDigest.isEqual(token, auth.getBytes(StandardCharsets.UTF_8))) {
+            return Optional.of(ResponseEntity.status(HttpStatus.UNAUTHORIZED).build());
+        }
+        return Optional.empty();
+    }
+}
@@ -1,17 +1,35 @@
 package us.salus.userservice.controllers;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import com.auth0.jwt.exceptions.JWTVerificationException;
 import com.auth0.jwt.interfaces.DecodedJWT;
 
+import us.salus.userservice.models.HistoryChanges;
+import us.salus.userservice.models.SearchResults;
 import us.salus.userservice.models.User;
+import us.salus.userservice.services.DurableAppendService;
+import us.salus.userservice.services.DurableAppendService.HistoryKind;
+import us.salus.userservice.services.HistorySearchService;
 import us.salus.userservice.services.JWTService;
 import us.salus.userservice.services.UserService;
+import us.salus.userservice.services.UserTransferService;
 
+import jakarta.servlet.http.HttpServletRequest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.time.ZonedDateTime;
 import java.util.List;
 import java.util.Optional;
@@ -20,16 +38,26 @@ import java.util.Optional;
 @RequestMapping("/api/users")
 public class UserController {
 
+    private static final Logger log = LoggerFactory.getLogger(UserController.class);
+
     private final UserService userService;
     private final JWTService jwtService;
+    private final DurableAppendService durableAppends;
+    private final HistorySearchService historySearch;
+    private final UserTransferService userTransfer;
 
     @Autowired
-    public UserController(UserService userService) {
+    public UserController(UserService userService, JWTService jwtService, DurableAppendService durableAppends,
+                          HistorySearchService historySearch, UserTransferService userTransfer) {
         this.userService = userService;
-        this.jwtService = new JWTService();
+        this.jwtService = jwtService;
+        this.durableAppends = durableAppends;
+        this.historySearch = historySearch;
+        this.userTransfer = userTransfer;
     }
 
-    // Basic CRUD endpoints
+    // Basic CRUD endpoints. Users are keyed by their numeric id; the name routes are secondary
+    // lookups, and since names aren't unique they resolve to the user with the lowest id.
     @GetMapping
     public ResponseEntity<List<User>> getAllUsers() {
         return ResponseEntity.ok(userService.getAllUsers());
@@ -52,8 +80,15 @@ public class UserController {
 
     @PostMapping
     public ResponseEntity<User> createUser(@RequestBody User user) {
-        User createdUser = userService.createUser(user);
-        return ResponseEntity.status(HttpStatus.CREATED).body(createdUser);
+        if (user.getId() <= 0) {
+            return ResponseEntity.badRequest().build();
+        }
+        try {
+            User createdUser = userService.createUser(user);
+            return ResponseEntity.status(HttpStatus.CREATED).body(createdUser);
+        } catch (DuplicateKeyException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
     }
 
     @PutMapping("/{name}")
@@ -69,6 +104,55 @@ public class UserController {
         return deleted ? ResponseEntity.noContent().build() : ResponseEntity.notFound().build();
     }
 
+    // Export and import: NDJSON archives of a user and their full history, optionally gzip-compressed
+    @GetMapping("/{name}/export")
+    public ResponseEntity<StreamingResponseBody> exportUser(
+            @PathVariable String name,
+            @RequestParam(defaultValue = "false") boolean gzip) {
+        return export("name", name, gzip);
+    }
+
+    @GetMapping("/id/{id}/export")
+    public ResponseEntity<StreamingResponseBody> exportUser(
+            @PathVariable long id,
+            @RequestParam(defaultValue = "false") boolean gzip) {
+        return export("id", id, gzip);
+    }
+
+    private ResponseEntity<StreamingResponseBody> export(String field, Object value, boolean gzip) {
+        Optional<User> profile = userTransfer.findProfile(field, value);
+        if (profile.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+        // A gzip archive is sent as a .gz file, not with Content-Encoding, so clients save it compressed
+        return ResponseEntity.ok()
+                .contentType(gzip ? MediaType.parseMediaType("application/gzip") : MediaType.APPLICATION_NDJSON)
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                        .filename(profile.get().getName() + (gzip ? ".ndjson.gz" : ".ndjson"), StandardCharsets.UTF_8)
+                        .build().toString())
+                .body(out -> userTransfer.export(profile.get(), out, gzip));
+    }
+
+    @PostMapping("/import")
+    public ResponseEntity<Void> importUser(
+            HttpServletRequest request,
+            @RequestHeader(value = HttpHeaders.CONTENT_ENCODING, required = false) String contentEncoding)
+            throws IOException {
+        try {
+            // Compressed either in transit or as a file, such as a gzip export posted back
+            boolean gzip = "gzip".equalsIgnoreCase(contentEncoding)
+                    || "application/gzip".equalsIgnoreCase(request.getContentType());
+            long id = userTransfer.importArchive(request.getInputStream(), gzip);
+            return ResponseEntity.created(URI.create("/api/users/id/" + id)).build();
+        } catch (DuplicateKeyException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        } catch (IllegalArgumentException e) {
+            // A malformed archive, including a body that isn't valid gzip; either way the client's fault
+            log.warn("Rejected user import: {}", e.getMessage());
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
     // Conversation history endpoints
     @GetMapping("/{name}/conversations")
     public ResponseEntity<List<User.ConversationEntry>> getConversationHistory(@PathVariable String name) {
@@ -92,6 +176,37 @@ public class UserController {
         return conversations != null ? ResponseEntity.ok(conversations) : ResponseEntity.notFound().build();
     }
 
+    // Delta sync: entries appended after the client's last high-water mark
+    @GetMapping("/id/{id}/changes")
+    public ResponseEntity<HistoryChanges> getChanges(
+            @PathVariable long id,
+            @RequestParam(defaultValue = "0") long since) {
+        if (since < 0) {
+            return ResponseEntity.badRequest().build();
+        }
+        Optional<HistoryChanges> changes = userService.getChangesSince(id, since);
+        return changes.map(ResponseEntity::ok)
+                .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
+    // Search endpoint: ranked matches in conversations ("conversation") and meal names ("meal")
+    @GetMapping("/id/{id}/search")
+    public ResponseEntity<SearchResults> searchHistory(
+            @PathVariable long id,
+            @RequestParam String q,
+            @RequestParam(required = false) String type,
+            @RequestParam(required = false) ZonedDateTime startDate,
+            @RequestParam(required = false) ZonedDateTime endDate,
+            @RequestParam(defaultValue = "0") int page,
+            @RequestParam(defaultValue = "20") int size) {
+        if (page < 0 || size < 1 || size > 100) {
+            return ResponseEntity.badRequest().build();
+        }
+        Optional<SearchResults> results = historySearch.search(id, q, type, startDate, endDate, page, size);
+        return results.map(ResponseEntity::ok)
+                .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
     @GetMapping("/id/{id}/meals")
     public ResponseEntity<List<User.HistoricalMeal>> getUserMealsById(@PathVariable long id) {
         List<User.HistoricalMeal> meals = userService.getUserMealsById(id);
@@ -101,7 +216,14 @@ public class UserController {
     @PostMapping("/id/{id}/conversations")
     public ResponseEntity<User.ConversationEntry> addConversationEntry(
             @PathVariable long id,
-            @RequestBody User.ConversationEntry conversationEntry) {
+            @RequestBody User.ConversationEntry conversationEntry) throws IOException {
+        if (durableAppends.isEnabled()) {
+            if (!userService.userExists(id)) {
+                return ResponseEntity.notFound().build();
+            }
+            durableAppends.append(HistoryKind.CONVERSATION, id, null, conversationEntry);
+            return ResponseEntity.accepted().body(conversationEntry);
+        }
         User.ConversationEntry addedEntry = userService.addConversationEntryById(id, conversationEntry);
         return addedEntry != null ? ResponseEntity.status(HttpStatus.CREATED).body(addedEntry)
                 : ResponseEntity.notFound().build();
@@ -120,17 +242,39 @@ public class UserController {
     @PostMapping("/{name}/conversations")
     public ResponseEntity<User.ConversationEntry> addConversationEntry(
             @PathVariable String name,
-            @RequestBody User.ConversationEntry conversationEntry) {
+            @RequestBody User.ConversationEntry conversationEntry) throws IOException {
+        if (durableAppends.isEnabled()) {
+            if (!appendDurably(HistoryKind.CONVERSATION, name, conversationEntry)) {
+                return ResponseEntity.notFound().build();
+            }
+            return ResponseEntity.accepted().body(conversationEntry);
+        }
         User.ConversationEntry addedEntry = userService.addConversationEntry(name, conversationEntry);
         return addedEntry != null ? ResponseEntity.status(HttpStatus.CREATED).body(addedEntry)
                 : ResponseEntity.notFound().build();
     }
 
+    // Durable appends through a name route are logged by id, so a later rename or re-key can't redirect them
+    private boolean appendDurably(HistoryKind kind, String name, Object entry) throws IOException {
+        Optional<Long> id = userService.getUserIdByName(name);
+        if (id.isEmpty()) {
+            return false;
+        }
+        durableAppends.append(kind, id.get(), name, entry);
+        return true;
+    }
+
     // Activity endpoints
     @PostMapping("/{name}/activities")
     public ResponseEntity<User> addHistoricalActivity(
             @PathVariable String name,
-            @RequestBody User.HistoricalActivity activity) {
+            @RequestBody User.HistoricalActivity activity) throws IOException {
+        if (durableAppends.isEnabled()) {
+            if (!appendDurably(HistoryKind.ACTIVITY, name, activity)) {
+                return ResponseEntity.notFound().build();
+            }
+            return ResponseEntity.accepted().build();
+        }
         User updatedUser = userService.addHistoricalActivity(name, activity);
         return updatedUser != null ? ResponseEntity.ok(updatedUser) : ResponseEntity.notFound().build();
     }
@@ -139,7 +283,13 @@ public class UserController {
     @PostMapping("/{name}/calories")
     public ResponseEntity<User> addHistoricalCalories(
             @PathVariable String name,
-            @RequestBody User.HistoricalCalories calories) {
+            @RequestBody User.HistoricalCalories calories) throws IOException {
+        if (durableAppends.isEnabled()) {
+            if (!appendDurably(HistoryKind.CALORIES, name, calories)) {
+                return ResponseEntity.notFound().build();
+            }
+            return ResponseEntity.accepted().build();
+        }
         User updatedUser = userService.addHistoricalCalories(name, calories);
         return updatedUser != null ? ResponseEntity.ok(updatedUser) : ResponseEntity.notFound().build();
     }
@@ -148,7 +298,13 @@ public class UserController {
     @PostMapping("/{name}/meals")
     public ResponseEntity<User> addHistoricalMeal(
             @PathVariable String name,
-            @RequestBody User.HistoricalMeal meal) {
+            @RequestBody User.HistoricalMeal meal) throws IOException {
+        if (durableAppends.isEnabled()) {
+            if (!appendDurably(HistoryKind.MEAL, name, meal)) {
+                return ResponseEntity.notFound().build();
+            }
+            return ResponseEntity.accepted().build();
+        }
         User updatedUser = userService.addHistoricalMeal(name, meal);
         return updatedUser != null ? ResponseEntity.ok(updatedUser) : ResponseEntity.notFound().build();
     }
@@ -156,7 +312,14 @@ public class UserController {
     @PostMapping("/id/{id}/activities")
     public ResponseEntity<User> addHistoricalActivity(
             @PathVariable long id,
-            @RequestBody User.HistoricalActivity activity) {
+            @RequestBody User.HistoricalActivity activity) throws IOException {
+        if (durableAppends.isEnabled()) {
+            if (!userService.userExists(id)) {
+                return ResponseEntity.notFound().build();
+            }
+            durableAppends.append(HistoryKind.ACTIVITY, id, null, activity);
+            return ResponseEntity.accepted().build();
+        }
         User updatedUser = userService.addHistoricalActivityById(id, activity);
         return updatedUser != null ? ResponseEntity.ok(updatedUser) : ResponseEntity.notFound().build();
     }
@@ -164,7 +327,14 @@ public class UserController {
     @PostMapping("/id/{id}/calories")
     public ResponseEntity<User> addHistoricalCalories(
             @PathVariable long id,
-            @RequestBody User.HistoricalCalories calories) {
+            @RequestBody User.HistoricalCalories calories) throws IOException {
+        if (durableAppends.isEnabled()) {
+            if (!userService.userExists(id)) {
+                return ResponseEntity.notFound().build();
+            }
+            durableAppends.append(HistoryKind.CALORIES, id, null, calories);
+            return ResponseEntity.accepted().build();
+        }
         User updatedUser = userService.addHistoricalCaloriesById(id, calories);
         return updatedUser != null ? ResponseEntity.ok(updatedUser) : ResponseEntity.notFound().build();
     }
@@ -172,7 +342,14 @@ public class UserController {
     @PostMapping("/id/{id}/meals")
     public ResponseEntity<User> addHistoricalMeal(
             @PathVariable long id,
-            @RequestBody User.HistoricalMeal meal) {
+            @RequestBody User.HistoricalMeal meal) throws IOException {
+        if (durableAppends.isEnabled()) {
+            if (!userService.userExists(id)) {
+                return ResponseEntity.notFound().build();
+            }
+            durableAppends.append(HistoryKind.MEAL, id, null, meal);
+            return ResponseEntity.accepted().build();
+        }
         User updatedUser = userService.addHistoricalMealById(id, meal);
         return updatedUser != null ? ResponseEntity.ok(updatedUser) : ResponseEntity.notFound().build();
     }
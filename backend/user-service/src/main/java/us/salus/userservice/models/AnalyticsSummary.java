@@ -0,0 +1,69 @@
+package us.salus.userservice.models;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+
+/**
+ * Precomputed distribution of one metric over all users for one time window.
+ * Written by the analytics job, one document per window and metric, and read
+ * back whole so percentile and leaderboard queries never touch user documents.
+ */
+@Data
+@NoArgsConstructor
+@Document(collection = "analytics_summaries")
+public class AnalyticsSummary {
+
+    @Id
+    private String key;
+    private Window window;
+    private Metric metric;
+    private ZonedDateTime computedAt;
+    private QuantileSketch sketch = new QuantileSketch();
+    private Leaderboard leaderboard;
+
+    public AnalyticsSummary(Window window, Metric metric, int leaderboardSize) {
+        this.key = key(window, metric);
+        this.window = window;
+        this.metric = metric;
+        this.leaderboard = new Leaderboard(leaderboardSize);
+    }
+
+    public static String key(Window window, Metric metric) {
+        return window.name() + ":" + metric.name();
+    }
+
+    public void merge(AnalyticsSummary other) {
+        sketch.merge(other.sketch);
+        leaderboard.merge(other.leaderboard);
+    }
+
+    public enum Window {
+        WEEK(Duration.ofDays(7)),
+        MONTH(Duration.ofDays(30)),
+        ALL(null);
+
+        private final Duration length;
+
+        Window(Duration length) {
+            this.length = length;
+        }
+
+        /** Start of the window ending at {@code now}, or null for all time. */
+        public ZonedDateTime startingBefore(ZonedDateTime now) {
+            return length == null ? null : now.minus(length);
+        }
+    }
+
+    public enum Metric {
+        /** Calories burned minus calories consumed. */
+        CALORIE_DEFICIT,
+        CALORIES_BURNED,
+        ACTIVITY_KILOJOULES,
+        ACTIVITY_COUNT
+    }
+}
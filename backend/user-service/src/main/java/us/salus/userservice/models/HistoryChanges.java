@@ -0,0 +1,24 @@
+package us.salus.userservice.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * History entries appended after {@code since}. Clients store {@code highWaterMark}
+ * and pass it as {@code since} on their next sync.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class HistoryChanges {
+    private long since;
+    private long highWaterMark;
+    private List<User.ConversationEntry> conversationHistory = new ArrayList<>();
+    private List<User.HistoricalActivity> historicalActivities = new ArrayList<>();
+    private List<User.HistoricalCalories> historicalCalories = new ArrayList<>();
+    private List<User.HistoricalMeal> historicalMeals = new ArrayList<>();
+}
@@ -0,0 +1,168 @@
+package us.salus.userservice.models;
+
+import java.time.ZonedDateTime;
+import java.time.chrono.ChronoZonedDateTime;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Read-only columnar copy of one history list: timestamps as epoch millis in
+ * ascending order, plus one {@code float[]} per numeric field. An entry costs
+ * 8 bytes plus 4 per column instead of an object graph with a
+ * {@link ZonedDateTime}, and scans touch only the arrays they need.
+ *
+ * {@link #range} finds its bounds by binary search and returns a view over the
+ * same arrays, so slicing copies nothing. Entries without a timestamp sort
+ * first, at {@link Long#MIN_VALUE}, so they only show up in ranges with an open
+ * start.
+ */
+public final class HistoryColumns {
+
+    // Columns of ofCalories
+    public static final int CALORIES_BURNED = 0;
+    public static final int CALORIES_CONSUMED = 1;
+    // Columns of ofActivities
+    public static final int KILOJOULES = 0;
+    public static final int AVERAGE_HEARTRATE = 1;
+    public static final int MAX_HEARTRATE = 2;
+    public static final int SUFFER_SCORE = 3;
+    // Columns of ofMeals
+    public static final int CARBS = 0;
+    public static final int PROTEIN = 1;
+    public static final int FATS = 2;
+
+    private interface FloatField<T> {
+        float get(T entry);
+    }
+
+    private final long[] times;
+    private final float[][] columns;
+    private final int from;
+    private final int to;
+
+    private HistoryColumns(long[] times, float[][] columns, int from, int to) {
+        this.times = times;
+        this.columns = columns;
+        this.from = from;
+        this.to = to;
+    }
+
+    public static HistoryColumns ofCalories(List<User.HistoricalCalories> entries) {
+        return build(entries, User.HistoricalCalories::getDate,
+                User.HistoricalCalories::getCaloriesBurned,
+                User.HistoricalCalories::getCaloriesConsumed);
+    }
+
+    public static HistoryColumns ofActivities(List<User.HistoricalActivity> entries) {
+        return build(entries, User.HistoricalActivity::getStartDate,
+                User.HistoricalActivity::getKilojoules,
+                User.HistoricalActivity::getAverageHeartrate,
+                User.HistoricalActivity::getMaxHeartrate,
+                User.HistoricalActivity::getSufferScore);
+    }
+
+    public static HistoryColumns ofMeals(List<User.HistoricalMeal> entries) {
+        return build(entries, User.HistoricalMeal::getTimestamp,
+                meal -> meal.getMacronutrients() == null ? 0 : meal.getMacronutrients().getCarbs(),
+                meal -> meal.getMacronutrients() == null ? 0 : meal.getMacronutrients().getProtein(),
+                meal -> meal.getMacronutrients() == null ? 0 : meal.getMacronutrients().getFats());
+    }
+
+    @SafeVarargs
+    private static <T> HistoryColumns build(List<T> entries, Function<T, ZonedDateTime> time, FloatField<T>... fields) {
+        Comparator<ChronoZonedDateTime<?>> timeLine = ChronoZonedDateTime.timeLineOrder();
+        List<T> sorted = entries.stream()
+                .sorted(Comparator.comparing(time, Comparator.nullsFirst(timeLine)))
+                .toList();
+        int n = sorted.size();
+        long[] times = new long[n];
+        float[][] columns = new float[fields.length][n];
+        for (int i = 0; i < n; i++) {
+            T entry = sorted.get(i);
+            ZonedDateTime timestamp = time.apply(entry);
+            times[i] = timestamp == null ? Long.MIN_VALUE : timestamp.toInstant().toEpochMilli();
+            for (int c = 0; c < fields.length; c++) {
+                columns[c][i] = fields[c].get(entry);
+            }
+        }
+        return new HistoryColumns(times, columns, 0, n);
+    }
+
+    public int size() {
+        return to - from;
+    }
+
+    public boolean isEmpty() {
+        return to == from;
+    }
+
+    /** Epoch millis of the {@code i}-th entry of this view. */
+    public long time(int i) {
+        return times[from + i];
+    }
+
+    public float value(int column, int i) {
+        return columns[column][from + i];
+    }
+
+    /** Entries with {@code fromMillis <= time <= toMillis}, sharing this view's arrays. */
+    public HistoryColumns range(long fromMillis, long toMillis) {
+        int lo = firstAtOrAfter(fromMillis);
+        int hi = toMillis == Long.MAX_VALUE ? to : Math.max(lo, firstAtOrAfter(toMillis + 1));
+        return new HistoryColumns(times, columns, lo, hi);
+    }
+
+    /** Like {@link #range(long, long)}; a null bound leaves that end open. */
+    public HistoryColumns range(ZonedDateTime start, ZonedDateTime end) {
+        return range(start == null ? Long.MIN_VALUE : start.toInstant().toEpochMilli(),
+                end == null ? Long.MAX_VALUE : end.toInstant().toEpochMilli());
+    }
+
+    /** Sum of one column over this view. */
+    public double sum(int column) {
+        float[] values = columns[column];
+        // Independent accumulators break the dependency between additions so the JIT can
+        // unroll and pipeline the loop; rounding differs from a sequential sum in the last bits
+        double s0 = 0;
+        double s1 = 0;
+        double s2 = 0;
+        double s3 = 0;
+        int i = from;
+        for (; i + 3 < to; i += 4) {
+            s0 += values[i];
+            s1 += values[i + 1];
+            s2 += values[i + 2];
+            s3 += values[i + 3];
+        }
+        for (; i < to; i++) {
+            s0 += values[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /** Copy of this view's timestamps, e.g. for a chart's x axis. */
+    public long[] times() {
+        return Arrays.copyOfRange(times, from, to);
+    }
+
+    /** Copy of one column over this view. */
+    public float[] column(int column) {
+        return Arrays.copyOfRange(columns[column], from, to);
+    }
+
+    private int firstAtOrAfter(long millis) {
+        int lo = from;
+        int hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] < millis) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,61 @@
+package us.salus.userservice.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The top {@code capacity} users by value, highest first. Like
+ * {@link QuantileSketch} it merges, so partial leaderboards built on different
+ * threads combine into the leaderboard of the whole population.
+ */
+@Data
+@NoArgsConstructor
+public class Leaderboard {
+
+    private static final Comparator<Entry> BY_VALUE_DESC = Comparator.comparingDouble(Entry::getValue).reversed();
+
+    private int capacity;
+    private List<Entry> entries = new ArrayList<>();
+
+    public Leaderboard(int capacity) {
+        setCapacity(capacity);
+    }
+
+    public void setCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Leaderboard capacity must be at least 1, was " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    public void offer(long userId, String name, double value) {
+        if (entries.size() == capacity && value <= entries.get(capacity - 1).getValue()) {
+            return;
+        }
+        entries.add(new Entry(userId, name, value));
+        entries.sort(BY_VALUE_DESC);
+        if (entries.size() > capacity) {
+            entries.remove(capacity);
+        }
+    }
+
+    public void merge(Leaderboard other) {
+        for (Entry entry : other.entries) {
+            offer(entry.getUserId(), entry.getName(), entry.getValue());
+        }
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Entry {
+        private long userId;
+        private String name;
+        private double value;
+    }
+}
@@ -0,0 +1,17 @@
+package us.salus.userservice.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.time.ZonedDateTime;
+
+@Data
+@AllArgsConstructor
+public class PercentileResponse {
+    private AnalyticsSummary.Window window;
+    private AnalyticsSummary.Metric metric;
+    private double value;
+    private double percentile;
+    private long population;
+    private ZonedDateTime computedAt;
+}
@@ -0,0 +1,19 @@
+package us.salus.userservice.models;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * State of the continuous flight recording. {@code dumps} are the saved
+ * recordings, newest first; slow-request dumps also have a {@code .json}
+ * summary under the same name.
+ */
+@Data
+public class ProfilingStatus {
+    private boolean recording;
+    private long slowThresholdMillis;
+    private long maxAgeSeconds;
+    private List<String> dumps = new ArrayList<>();
+}
@@ -0,0 +1,199 @@
+package us.salus.userservice.models;
+
+import java.util.Arrays;
+
+/**
+ * Mergeable quantile sketch with bounded relative error, in the style of
+ * DDSketch. Values are counted in logarithmically sized buckets, so every
+ * quantile estimate is within {@link #RELATIVE_ACCURACY} of the true value and
+ * the number of buckets grows only with the logarithm of the value range.
+ * Negative values (e.g. a calorie surplus) get a mirrored set of buckets, and
+ * anything smaller in magnitude than {@link #MIN_INDEXABLE} counts as zero.
+ *
+ * Two sketches built over disjoint inputs merge into exactly the sketch of the
+ * combined input, which is what lets the analytics job split users over
+ * threads and combine the partial results.
+ */
+public class QuantileSketch {
+
+    public static final double RELATIVE_ACCURACY = 0.01;
+    static final double MIN_INDEXABLE = 1.0;
+
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+
+    // Bucket i of a store holds values v with GAMMA^(offset+i-1) < |v| <= GAMMA^(offset+i)
+    private int positiveOffset;
+    private long[] positive = new long[0];
+    private int negativeOffset;
+    private long[] negative = new long[0];
+    private long zeroCount;
+    private long count;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public void add(double value) {
+        if (value >= MIN_INDEXABLE) {
+            addToStore(true, index(value), 1);
+        } else if (value <= -MIN_INDEXABLE) {
+            addToStore(false, index(-value), 1);
+        } else {
+            zeroCount++;
+        }
+        count++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public void merge(QuantileSketch other) {
+        for (int i = 0; i < other.positive.length; i++) {
+            addToStore(true, other.positiveOffset + i, other.positive[i]);
+        }
+        for (int i = 0; i < other.negative.length; i++) {
+            addToStore(false, other.negativeOffset + i, other.negative[i]);
+        }
+        zeroCount += other.zeroCount;
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Fraction of recorded values less than or equal to {@code value}, in [0, 1].
+     * Runs in time proportional to the number of buckets, which is bounded by the
+     * value range rather than the number of values.
+     */
+    public double rank(double value) {
+        if (count == 0) {
+            return 0;
+        }
+        if (value < min) {
+            return 0;
+        }
+        if (value >= max) {
+            return 1;
+        }
+        long below = 0;
+        if (value <= -MIN_INDEXABLE) {
+            int index = index(-value);
+            for (int i = 0; i < negative.length; i++) {
+                if (negativeOffset + i >= index) {
+                    below += negative[i];
+                }
+            }
+        } else {
+            below += sum(negative) + zeroCount;
+            if (value >= MIN_INDEXABLE) {
+                int index = index(value);
+                for (int i = 0; i < positive.length; i++) {
+                    if (positiveOffset + i <= index) {
+                        below += positive[i];
+                    }
+                }
+            }
+        }
+        return (double) below / count;
+    }
+
+    /** Estimated value at quantile {@code q} in [0, 1]. */
+    public double quantile(double q) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        if (q <= 0) {
+            return min;
+        }
+        if (q >= 1) {
+            return max;
+        }
+        long target = (long) Math.ceil(q * count);
+        long seen = 0;
+        // Walk from the most negative bucket upwards
+        for (int i = negative.length - 1; i >= 0; i--) {
+            seen += negative[i];
+            if (seen >= target) {
+                return clamp(-value(negativeOffset + i));
+            }
+        }
+        seen += zeroCount;
+        if (seen >= target) {
+            return clamp(0);
+        }
+        for (int i = 0; i < positive.length; i++) {
+            seen += positive[i];
+            if (seen >= target) {
+                return clamp(value(positiveOffset + i));
+            }
+        }
+        return max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    private void addToStore(boolean positiveStore, int index, long n) {
+        if (n == 0) {
+            return;
+        }
+        if (positiveStore) {
+            boolean empty = positive.length == 0;
+            positive = grow(positive, positiveOffset, index);
+            positiveOffset = empty ? index : Math.min(positiveOffset, index);
+            positive[index - positiveOffset] += n;
+        } else {
+            boolean empty = negative.length == 0;
+            negative = grow(negative, negativeOffset, index);
+            negativeOffset = empty ? index : Math.min(negativeOffset, index);
+            negative[index - negativeOffset] += n;
+        }
+    }
+
+    /**
+     * Returns a copy of {@code store} wide enough to hold {@code index}, shifted
+     * right when the index lies below the current offset.
+     */
+    private static long[] grow(long[] store, int offset, int index) {
+        if (store.length == 0) {
+            return new long[1];
+        }
+        if (index < offset) {
+            long[] grown = new long[store.length + (offset - index)];
+            System.arraycopy(store, 0, grown, offset - index, store.length);
+            return grown;
+        }
+        if (index - offset >= store.length) {
+            return Arrays.copyOf(store, index - offset + 1);
+        }
+        return store;
+    }
+
+    private double clamp(double value) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static int index(double magnitude) {
+        return (int) Math.ceil(Math.log(magnitude) / LOG_GAMMA);
+    }
+
+    // Midpoint of a bucket that keeps the relative error within RELATIVE_ACCURACY
+    private static double value(int index) {
+        return 2 * Math.pow(GAMMA, index) / (1 + GAMMA);
+    }
+
+    private static long sum(long[] store) {
+        long total = 0;
+        for (long n : store) {
+            total += n;
+        }
+        return total;
+    }
+}
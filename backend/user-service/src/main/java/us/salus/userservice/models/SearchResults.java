@@ -0,0 +1,31 @@
+package us.salus.userservice.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SearchResults {
+    private long total;
+    private int page;
+    private int size;
+    private List<Hit> hits = new ArrayList<>();
+
+    /** One matching history entry; exactly one of conversation and meal is set. */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Hit {
+        private String type;
+        private double score;
+        private ZonedDateTime timestamp;
+        private User.ConversationEntry conversation;
+        private User.HistoricalMeal meal;
+    }
+}
@@ -0,0 +1,32 @@
+package us.salus.userservice.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.ZonedDateTime;
+
+/**
+ * One RSA key pair of the session signing key ring. Keys are published (and
+ * accepted for verification) from creation, used for signing from
+ * {@code activatesAt}, and accepted until {@code expiresAt}.
+ *
+ * The private key is stored as-is, so read access to this collection is
+ * equivalent to being able to mint sessions.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "signing_keys")
+public class SigningKey {
+
+    @Id
+    private String kid;
+    private byte[] publicKey;
+    private byte[] privateKey;
+    private ZonedDateTime createdAt;
+    private ZonedDateTime activatesAt;
+    private ZonedDateTime expiresAt;
+}
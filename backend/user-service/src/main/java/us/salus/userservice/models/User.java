@@ -1,5 +1,7 @@
 package us.salus.userservice.models;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -8,15 +10,18 @@ import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 @Data
-@Document(collection = "users")
+// Keyed by the Strava athlete id; see UserRekeyService for the move from the name-keyed "users" collection
+@Document(collection = "users_by_id")
 public class User {
 
     @Id
-    private String name;
     private long id;
+    private String name;
     private int age;
     private float weight;
     private float height;
@@ -27,6 +32,13 @@ public class User {
     private List<HistoricalActivity> historicalActivities = new ArrayList<>();
     private List<HistoricalMeal> historicalMeals = new ArrayList<>();
     private List<ConversationEntry> conversationHistory = new ArrayList<>();
+    // Highest sequence number handed to a history entry of this user, see UserService.getChangesSince.
+    // Sequence numbers are only ever assigned by the server, so clients can read but not set them
+    @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+    private long syncSeq;
+    // Last write-ahead log entry applied to this user, by log id, see DurableAppendService
+    @JsonIgnore
+    private Map<String, Long> walSeqByLog = new HashMap<>();
 
     public User() {
     }
@@ -60,22 +72,6 @@ public class User {
         this.calculateBMR();
     }
 
-    public void addHistoricalCalories(HistoricalCalories caloriesEntry) {
-        this.historicalCalories.add(caloriesEntry);
-    }
-
-    public void addHistoricalActivity(HistoricalActivity activityEntry) {
-        this.historicalActivities.add(activityEntry);
-    }
-
-    public void addHistoricalMeal(HistoricalMeal mealEntry) {
-        this.historicalMeals.add(mealEntry);
-    }
-
-    public void addConversationEntry(ConversationEntry conversationEntry) {
-        this.conversationHistory.add(conversationEntry);
-    }
-
     @Data
     @NoArgsConstructor
     @AllArgsConstructor
@@ -83,6 +79,8 @@ public class User {
         private ZonedDateTime date;
         private float caloriesBurned;
         private float caloriesConsumed;
+        @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+        private long seq;
     }
 
     @Data
@@ -100,6 +98,8 @@ public class User {
         private float averageHeartrate;
         private float maxHeartrate;
         private float sufferScore;
+        @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+        private long seq;
     }
 
     @Data
@@ -109,6 +109,8 @@ public class User {
         private String name;
         private ZonedDateTime timestamp;
         private Macronutrients macronutrients = new Macronutrients();
+        @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+        private long seq;
 
         @Data
         @NoArgsConstructor
@@ -127,5 +129,7 @@ public class User {
         private ZonedDateTime timestamp;
         private String message;
         private String response;
+        @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+        private long seq;
     }
 }
@@ -0,0 +1,9 @@
+package us.salus.userservice.repositories;
+
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+import us.salus.userservice.models.AnalyticsSummary;
+
+@Repository
+public interface AnalyticsSummaryRepository extends MongoRepository<AnalyticsSummary, String> {
+}
@@ -0,0 +1,16 @@
+package us.salus.userservice.repositories;
+
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+import us.salus.userservice.models.SigningKey;
+
+import java.time.ZonedDateTime;
+import java.util.List;
+
+@Repository
+public interface SigningKeyRepository extends MongoRepository<SigningKey, String> {
+
+    List<SigningKey> findByExpiresAtAfter(ZonedDateTime now);
+
+    void deleteByExpiresAtBefore(ZonedDateTime now);
+}
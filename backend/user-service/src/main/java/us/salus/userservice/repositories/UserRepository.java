@@ -10,11 +10,10 @@ import java.util.List;
 import java.util.Optional;
 
 @Repository
-public interface UserRepository extends MongoRepository<User, String> {
+public interface UserRepository extends MongoRepository<User, Long> {
 
-    Optional<User> findById(long id);
-
-    Optional<User> findByName(String name);
+    // Names aren't unique; name lookups resolve to the user with the lowest id
+    Optional<User> findFirstByNameOrderByIdAsc(String name);
 
     // Query to find users who have logged activities in a date range
     @Query("{'historicalActivities.startDate': {$gte: ?0, $lte: ?1}}")
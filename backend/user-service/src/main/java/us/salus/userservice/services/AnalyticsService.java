@@ -0,0 +1,381 @@
+package us.salus.userservice.services;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.bson.Document;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import us.salus.userservice.models.AnalyticsSummary;
+import us.salus.userservice.models.AnalyticsSummary.Metric;
+import us.salus.userservice.models.AnalyticsSummary.Window;
+import us.salus.userservice.models.HistoryColumns;
+import us.salus.userservice.models.Leaderboard;
+import us.salus.userservice.models.PercentileResponse;
+import us.salus.userservice.models.User;
+import us.salus.userservice.repositories.AnalyticsSummaryRepository;
+import us.salus.userservice.services.ReadRouter.ReadOperation;
+
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/**
+ * Cross-user analytics. A periodic job streams every user's calorie and
+ * activity history off a cursor, fans the users out to worker threads that
+ * each build partial quantile sketches and leaderboards, merges the partials
+ * and stores one {@link AnalyticsSummary} per window and metric. Queries are
+ * answered from those summaries alone, so their cost does not depend on the
+ * number of users.
+ *
+ * <p>Replicas share the work through a lease document: only the holder
+ * refreshes, and a scheduled run is skipped when another replica finished one
+ * within the last half interval. Summaries are always read from the database,
+ * so every replica serves the latest one.
+ */
+@Service
+@Lazy(false)
+public class AnalyticsService {
+
+    private static final int CHUNK_SIZE = 256;
+    private static final List<User> END_OF_STREAM = List.of();
+    static final String LEASE_COLLECTION = "analytics_lease";
+    private static final String LEASE_ID = "refresh";
+
+    private final MongoTemplate mongoTemplate;
+    private final AnalyticsSummaryRepository summaryRepository;
+    private final ReadRouter readRouter;
+    private final UserRekeyService userRekey;
+    private final int threads;
+    private final int leaderboardSize;
+    private final Duration refreshInterval;
+    private final Duration lease;
+    private final String owner = UUID.randomUUID().toString();
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    @Autowired
+    public AnalyticsService(MongoTemplate mongoTemplate,
+                            AnalyticsSummaryRepository summaryRepository,
+                            ReadRouter readRouter,
+                            UserRekeyService userRekey,
+                            @Value("${salus.analytics.threads:0}") int threads,
+                            @Value("${salus.analytics.leaderboard-size:10}") int leaderboardSize,
+                            @Value("${salus.analytics.refresh-interval:PT1H}") Duration refreshInterval,
+                            @Value("${salus.analytics.lease:PT30M}") Duration lease) {
+        this.mongoTemplate = mongoTemplate;
+        this.summaryRepository = summaryRepository;
+        this.readRouter = readRouter;
+        this.userRekey = userRekey;
+        if (leaderboardSize < 1) {
+            throw new IllegalArgumentException("salus.analytics.leaderboard-size must be at least 1");
+        }
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.leaderboardSize = leaderboardSize;
+        this.refreshInterval = refreshInterval;
+        this.lease = lease;
+    }
+
+    @Scheduled(fixedDelayString = "${salus.analytics.refresh-interval:PT1H}",
+            initialDelayString = "${salus.analytics.refresh-interval:PT1H}")
+    public void scheduledRefresh() {
+        if (claim(true)) {
+            runClaimedRefresh();
+        }
+    }
+
+    /**
+     * Starts a refresh on a background thread.
+     *
+     * @return false if a refresh is already running here or on another replica
+     */
+    public boolean refreshInBackground() {
+        // Claim the run here, not on the new thread, so two concurrent calls can't both start one
+        if (!claim(false)) {
+            return false;
+        }
+        Thread thread = new Thread(this::runClaimedRefresh, "analytics-refresh");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Recomputes every summary. Runs at most once at a time across all
+     * replicas; a call made while another refresh is in progress returns
+     * immediately.
+     */
+    public void refresh() {
+        if (claim(false)) {
+            runClaimedRefresh();
+        }
+    }
+
+    /**
+     * Claims the run locally and then the cluster-wide lease. A {@code scheduled}
+     * claim also fails when another replica completed a refresh recently.
+     */
+    private boolean claim(boolean scheduled) {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        Date now = new Date();
+        Criteria free = Criteria.where("_id").is(LEASE_ID).and("expiresAt").lt(now);
+        if (scheduled) {
+            Date fresh = new Date(now.getTime() - refreshInterval.toMillis() / 2);
+            free.orOperator(Criteria.where("completedAt").exists(false), Criteria.where("completedAt").lt(fresh));
+        }
+        try {
+            // Matches only a free lease; otherwise the upsert collides with the held one on _id
+            mongoTemplate.upsert(Query.query(free), new Update()
+                    .set("owner", owner)
+                    .set("expiresAt", new Date(now.getTime() + lease.toMillis())), LEASE_COLLECTION);
+            return true;
+        } catch (DuplicateKeyException e) {
+            running.set(false);
+            return false;
+        } catch (RuntimeException e) {
+            running.set(false);
+            throw e;
+        }
+    }
+
+    /** Runs a refresh the caller has already claimed with {@link #claim}. */
+    private void runClaimedRefresh() {
+        boolean completed = false;
+        try {
+            ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+            Map<String, AnalyticsSummary> merged = aggregate(now);
+            merged.values().forEach(summary -> summary.setComputedAt(now));
+            summaryRepository.saveAll(merged.values());
+            completed = true;
+        } finally {
+            try {
+                Date now = new Date();
+                Update release = new Update().set("expiresAt", now);
+                if (completed) {
+                    release.set("completedAt", now);
+                }
+                mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(LEASE_ID).and("owner").is(owner)),
+                        release, LEASE_COLLECTION);
+            } finally {
+                running.set(false);
+            }
+        }
+    }
+
+    public Optional<AnalyticsSummary> getSummary(Window window, Metric metric) {
+        return summaryRepository.findById(AnalyticsSummary.key(window, metric));
+    }
+
+    public Optional<PercentileResponse> getPercentile(Window window, Metric metric, double value) {
+        return getSummary(window, metric).map(summary -> new PercentileResponse(
+                window, metric, value,
+                summary.getSketch().rank(value) * 100,
+                summary.getSketch().getCount(),
+                summary.getComputedAt()));
+    }
+
+    /**
+     * Percentile of one user's own value. Empty when there is no summary yet, the
+     * user doesn't exist, or the user has no history in the window.
+     */
+    public Optional<PercentileResponse> getPercentileForUser(Window window, Metric metric, long userId) {
+        userRekey.ensureMigrated("id", userId);
+        ZonedDateTime from = window.startingBefore(ZonedDateTime.now(ZoneOffset.UTC));
+        // Only the window's totals leave the database, not the history lists
+        Document totals = mongoTemplate.aggregate(Aggregation.newAggregation(User.class,
+                        Aggregation.match(Criteria.where("id").is(userId)),
+                        context -> new Document("$project", new Document()
+                                .append("calories", inWindow("$historicalCalories", "date", from))
+                                .append("activities", inWindow("$historicalActivities", "startDate", from))),
+                        context -> new Document("$project", new Document()
+                                .append("calorieEntries", new Document("$size", "$calories"))
+                                .append("burned", new Document("$sum", "$calories.caloriesBurned"))
+                                .append("consumed", new Document("$sum", "$calories.caloriesConsumed"))
+                                .append("activityEntries", new Document("$size", "$activities"))
+                                .append("kilojoules", new Document("$sum", "$activities.kilojoules")))),
+                Document.class).getUniqueMappedResult();
+        return Optional.ofNullable(totals)
+                .map(found -> metrics(found).get(metric))
+                .flatMap(value -> getPercentile(window, metric, value));
+    }
+
+    /** Entries of {@code list} dated on or after {@code from}; every entry when null. */
+    private static Document inWindow(String list, String dateField, ZonedDateTime from) {
+        Document input = new Document("$ifNull", List.of(list, List.of()));
+        if (from == null) {
+            return input;
+        }
+        // Entries without a date compare below any date, as in HistoryColumns
+        return new Document("$filter", new Document("input", input)
+                .append("as", "entry")
+                .append("cond", new Document("$gte", List.of("$$entry." + dateField, Date.from(from.toInstant())))));
+    }
+
+    public Optional<List<Leaderboard.Entry>> getLeaderboard(Window window, Metric metric) {
+        return getSummary(window, metric).map(summary -> summary.getLeaderboard().getEntries());
+    }
+
+    private Map<String, AnalyticsSummary> aggregate(ZonedDateTime now) {
+        // Bounded hand-off so the cursor never runs more than a few chunks ahead of the workers
+        BlockingQueue<List<User>> chunks = new ArrayBlockingQueue<>(threads * 2);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Map<String, AnalyticsSummary>>> partials = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                partials.add(pool.submit(() -> accumulate(chunks, now)));
+            }
+
+            String[] fields = { "id", "name", "historicalCalories", "historicalActivities" };
+            Query query = new Query().withReadPreference(readRouter.preferenceFor(ReadOperation.ANALYTICS));
+            query.fields().include(fields);
+            query.cursorBatchSize(CHUNK_SIZE);
+            // While re-keying, users still in the legacy collection count too. They are read before the
+            // new collection is opened and skipped there, so a user moved in between is counted once.
+            Set<Long> legacyIds = new HashSet<>();
+            try {
+                List<User> chunk = new ArrayList<>(CHUNK_SIZE);
+                try (Stream<User> legacy = userRekey.streamLegacyUsers(fields)) {
+                    for (User user : (Iterable<User>) legacy::iterator) {
+                        legacyIds.add(user.getId());
+                        chunk = offer(chunks, chunk, user);
+                    }
+                }
+                try (Stream<User> users = mongoTemplate.stream(query, User.class)) {
+                    for (User user : (Iterable<User>) users::iterator) {
+                        if (!legacyIds.contains(user.getId())) {
+                            chunk = offer(chunks, chunk, user);
+                        }
+                    }
+                }
+                if (!chunk.isEmpty()) {
+                    chunks.put(chunk);
+                }
+            } finally {
+                for (int i = 0; i < threads; i++) {
+                    chunks.put(END_OF_STREAM);
+                }
+            }
+
+            Map<String, AnalyticsSummary> merged = emptySummaries();
+            for (Future<Map<String, AnalyticsSummary>> partial : partials) {
+                for (AnalyticsSummary summary : partial.get().values()) {
+                    merged.get(summary.getKey()).merge(summary);
+                }
+            }
+            return merged;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Analytics refresh interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Analytics refresh failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** Adds {@code user} to {@code chunk}, handing the chunk to the workers once full; returns the chunk to fill next. */
+    private static List<User> offer(BlockingQueue<List<User>> chunks, List<User> chunk, User user)
+            throws InterruptedException {
+        chunk.add(user);
+        if (chunk.size() < CHUNK_SIZE) {
+            return chunk;
+        }
+        chunks.put(chunk);
+        return new ArrayList<>(CHUNK_SIZE);
+    }
+
+    private Map<String, AnalyticsSummary> accumulate(BlockingQueue<List<User>> chunks, ZonedDateTime now)
+            throws InterruptedException {
+        Map<String, AnalyticsSummary> partial = emptySummaries();
+        List<User> chunk;
+        while ((chunk = chunks.take()) != END_OF_STREAM) {
+            for (User user : chunk) {
+                // Columnar once per user; each window is then a binary search and a few sums
+                HistoryColumns calories = HistoryColumns.ofCalories(user.getHistoricalCalories());
+                HistoryColumns activities = HistoryColumns.ofActivities(user.getHistoricalActivities());
+                for (Window window : Window.values()) {
+                    metrics(calories, activities, window.startingBefore(now)).forEach((metric, value) -> {
+                        AnalyticsSummary summary = partial.get(AnalyticsSummary.key(window, metric));
+                        summary.getSketch().add(value);
+                        summary.getLeaderboard().offer(user.getId(), user.getName(), value);
+                    });
+                }
+            }
+        }
+        return partial;
+    }
+
+    private Map<String, AnalyticsSummary> emptySummaries() {
+        Map<String, AnalyticsSummary> empty = new HashMap<>();
+        for (Window window : Window.values()) {
+            for (Metric metric : Metric.values()) {
+                empty.put(AnalyticsSummary.key(window, metric), new AnalyticsSummary(window, metric, leaderboardSize));
+            }
+        }
+        return empty;
+    }
+
+    /**
+     * A user's value for every metric over history since {@code from} (all
+     * history when null). Metrics without any entries in the window are left
+     * out so inactive users don't skew the distribution.
+     */
+    static Map<Metric, Double> metrics(HistoryColumns calories, HistoryColumns activities, ZonedDateTime from) {
+        Map<Metric, Double> values = new EnumMap<>(Metric.class);
+
+        HistoryColumns caloriesInWindow = calories.range(from, null);
+        if (!caloriesInWindow.isEmpty()) {
+            double burned = caloriesInWindow.sum(HistoryColumns.CALORIES_BURNED);
+            values.put(Metric.CALORIE_DEFICIT, burned - caloriesInWindow.sum(HistoryColumns.CALORIES_CONSUMED));
+            values.put(Metric.CALORIES_BURNED, burned);
+        }
+
+        HistoryColumns activitiesInWindow = activities.range(from, null);
+        if (!activitiesInWindow.isEmpty()) {
+            values.put(Metric.ACTIVITY_KILOJOULES, activitiesInWindow.sum(HistoryColumns.KILOJOULES));
+            values.put(Metric.ACTIVITY_COUNT, (double) activitiesInWindow.size());
+        }
+        return values;
+    }
+
+    /** The same metrics from window totals computed in the database by {@link #getPercentileForUser}. */
+    static Map<Metric, Double> metrics(Document totals) {
+        Map<Metric, Double> values = new EnumMap<>(Metric.class);
+        if (((Number) totals.get("calorieEntries")).intValue() > 0) {
+            double burned = ((Number) totals.get("burned")).doubleValue();
+            values.put(Metric.CALORIE_DEFICIT, burned - ((Number) totals.get("consumed")).doubleValue());
+            values.put(Metric.CALORIES_BURNED, burned);
+        }
+        int activityEntries = ((Number) totals.get("activityEntries")).intValue();
+        if (activityEntries > 0) {
+            values.put(Metric.ACTIVITY_KILOJOULES, ((Number) totals.get("kilojoules")).doubleValue());
+            values.put(Metric.ACTIVITY_COUNT, (double) activityEntries);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,112 @@
+package us.salus.userservice.services;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Adaptive limit on the number of requests in flight, in the style of the
+ * gradient limiters from Netflix's concurrency-limits.
+ *
+ * Two moving averages of request latency are kept: a short one over the last
+ * few requests and a long one that serves as the no-load baseline. While the
+ * short average stays within {@code RTT_TOLERANCE} of the baseline the limit
+ * grows by about its square root per sample; once queueing pushes latency past
+ * that, the limit shrinks in proportion (by at most half). No latency target
+ * has to be configured.
+ *
+ * Each {@link Priority} may only fill its share of the limit, so bulk reads are
+ * turned away first and critical requests keep headroom for themselves.
+ */
+@Service
+public class ConcurrencyLimiter {
+
+    /** Request classes, with the share of the limit each may occupy. */
+    public enum Priority {
+        CRITICAL(1.0),
+        NORMAL(0.8),
+        BULK(0.5);
+
+        final double share;
+
+        Priority(double share) {
+            this.share = share;
+        }
+    }
+
+    private static final double RTT_TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+    private static final double SHORT_WINDOW = 10;
+    private static final double LONG_WINDOW = 600;
+
+    private final boolean enabled;
+    private final int minLimit;
+    private final int maxLimit;
+
+    private double limit;
+    private int inFlight;
+    private double shortRtt;
+    private double longRtt;
+
+    @Autowired
+    public ConcurrencyLimiter(@Value("${salus.limiter.enabled:true}") boolean enabled,
+                              @Value("${salus.limiter.initial-limit:20}") int initialLimit,
+                              @Value("${salus.limiter.min-limit:4}") int minLimit,
+                              @Value("${salus.limiter.max-limit:150}") int maxLimit) {
+        this.enabled = enabled;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Admits a request of the given priority if its share of the limit isn't
+     * used up. Every admitted request must be followed by exactly one
+     * {@link #release}.
+     */
+    public synchronized boolean tryAcquire(Priority priority) {
+        if (inFlight >= Math.max(1, Math.floor(limit * priority.share))) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Ends an admitted request that took {@code rttNanos}. Pass a negative value
+     * for requests whose duration says nothing about load, such as streamed
+     * responses, so they free their slot without feeding the estimate.
+     */
+    public synchronized void release(long rttNanos) {
+        int concurrent = inFlight--;
+        if (rttNanos < 0) {
+            return;
+        }
+        double rtt = Math.max(rttNanos, 1);
+        shortRtt = shortRtt == 0 ? rtt : shortRtt + (rtt - shortRtt) / SHORT_WINDOW;
+        longRtt = longRtt == 0 ? rtt : longRtt + (rtt - longRtt) / LONG_WINDOW;
+        // After a period of overload the baseline is inflated; let it catch up with reality
+        if (longRtt > 2 * shortRtt) {
+            longRtt *= 0.95;
+        }
+        // Don't grow a limit the traffic isn't using, or an idle service would ratchet it up
+        if (concurrent < limit / 2 && shortRtt <= RTT_TOLERANCE * longRtt) {
+            return;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, RTT_TOLERANCE * longRtt / shortRtt));
+        double target = limit * gradient + Math.sqrt(limit);
+        limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - SMOOTHING) + target * SMOOTHING));
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+}
@@ -0,0 +1,373 @@
+package us.salus.userservice.services;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.AggregationOperation;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import org.bson.Document;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.MongoException;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import us.salus.userservice.models.User;
+
+/**
+ * Opt-in durable append mode for history entries ({@code salus.wal.enabled}).
+ *
+ * Appends go to a local {@link WriteAheadLog} and are acknowledged as soon as
+ * they are on disk, without waiting for MongoDB. A single flusher thread
+ * drains the log in batches and applies each batch with one bulk write. Every
+ * entry carries its log sequence number and is applied with a condition on the
+ * user's {@code walSeqByLog.<log id>}, so replaying entries that already reached
+ * MongoDB (after a crash between the write and the checkpoint) is a no-op.
+ * Keying the mark by {@link WriteAheadLog#getLogId()} keeps nodes sharing the
+ * database, and nodes restarted with an empty log directory, from mistaking
+ * each other's sequence numbers for their own. If MongoDB
+ * is unavailable the flusher keeps retrying the same batch while new appends
+ * keep landing in the log; on restart everything past the checkpoint is
+ * replayed. An entry that fails on its own (it can't be converted, or MongoDB
+ * rejects that one write) is moved to the {@value #DEAD_LETTERS} collection
+ * instead, so it can't hold up the entries behind it. Like the synchronous
+ * append paths, each entry is stamped with the user's next {@code syncSeq};
+ * here MongoDB assigns it inside the update.
+ *
+ * Appends through the name routes are resolved to the user's id when they are
+ * accepted, so entries are always applied by id. Entries for users that
+ * don't exist (any more) are dropped when they are flushed.
+ */
+@Service
+@Lazy(false)
+public class DurableAppendService {
+
+    /** The history lists that support durable appends, with their field in the user document. */
+    public enum HistoryKind {
+        CONVERSATION("conversationHistory", User.ConversationEntry.class),
+        ACTIVITY("historicalActivities", User.HistoricalActivity.class),
+        CALORIES("historicalCalories", User.HistoricalCalories.class),
+        MEAL("historicalMeals", User.HistoricalMeal.class);
+
+        final String field;
+        final Class<?> type;
+
+        HistoryKind(String field, Class<?> type) {
+            this.field = field;
+            this.type = type;
+        }
+    }
+
+    /**
+     * One logged append. Entries are logged by user id, plus the name for
+     * appends made through a name route; logs written before names were
+     * resolved on accept may also hold entries with {@code userField} "name".
+     */
+    record Entry(HistoryKind kind, String userField, String user, JsonNode value, String name) {
+    }
+
+    private record Pending(long seq, Entry entry) {
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(DurableAppendService.class);
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+    static final String DEAD_LETTERS = "wal_dead_letters";
+
+    private final MongoTemplate mongoTemplate;
+    private final ReadRouter readRouter;
+    private final UserRekeyService userRekey;
+    private final ObjectMapper objectMapper;
+    private final boolean enabled;
+    private final Path dir;
+    private final int segmentSize;
+    private final int batchSize;
+    private final boolean syncEveryAppend;
+    private final LinkedBlockingQueue<Pending> pending = new LinkedBlockingQueue<>();
+
+    private WriteAheadLog wal;
+    private Thread flusher;
+    private volatile boolean running;
+
+    @Autowired
+    public DurableAppendService(MongoTemplate mongoTemplate,
+                                ReadRouter readRouter,
+                                UserRekeyService userRekey,
+                                ObjectMapper objectMapper,
+                                @Value("${salus.wal.enabled:false}") boolean enabled,
+                                @Value("${salus.wal.dir:wal}") Path dir,
+                                @Value("${salus.wal.segment-size:67108864}") int segmentSize,
+                                @Value("${salus.wal.batch-size:500}") int batchSize,
+                                @Value("${salus.wal.sync-every-append:true}") boolean syncEveryAppend) {
+        this.mongoTemplate = mongoTemplate;
+        this.readRouter = readRouter;
+        this.userRekey = userRekey;
+        this.objectMapper = objectMapper;
+        this.enabled = enabled;
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.batchSize = batchSize;
+        this.syncEveryAppend = syncEveryAppend;
+    }
+
+    @PostConstruct
+    void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        wal = new WriteAheadLog(dir, segmentSize);
+        for (WriteAheadLog.Record record : wal.replay()) {
+            pending.add(new Pending(record.seq(), objectMapper.readValue(record.payload(), Entry.class)));
+        }
+        running = true;
+        flusher = new Thread(this::flushLoop, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        if (!enabled) {
+            return;
+        }
+        running = false;
+        flusher.interrupt();
+        flusher.join(TimeUnit.SECONDS.toMillis(10));
+        wal.close();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Durably logs an entry for user {@code userId} and returns once it is safe
+     * to acknowledge. The entry reaches MongoDB later. {@code name} is the name
+     * the client addressed the user by, or null for the id routes.
+     */
+    public void append(HistoryKind kind, long userId, String name, Object value) throws IOException {
+        // Stamp now rather than at flush time so a replay writes the same entry
+        if (value instanceof User.ConversationEntry conversation && conversation.getTimestamp() == null) {
+            conversation.setTimestamp(ZonedDateTime.now());
+        }
+        Entry entry = new Entry(kind, "id", Long.toString(userId), objectMapper.valueToTree(value), name);
+        byte[] payload = objectMapper.writeValueAsBytes(entry);
+        long seq;
+        // Sequence order and queue order must agree, so both happen under one lock
+        synchronized (this) {
+            seq = wal.append(payload);
+            pending.add(new Pending(seq, entry));
+        }
+        if (syncEveryAppend) {
+            wal.sync(seq);
+        }
+    }
+
+    /** Entries accepted but not yet applied to MongoDB. */
+    public int backlog() {
+        return pending.size();
+    }
+
+    private void flushLoop() {
+        List<Pending> batch = new ArrayList<>(batchSize);
+        long backoffMillis = MIN_BACKOFF_MILLIS;
+        while (running) {
+            try {
+                if (batch.isEmpty()) {
+                    Pending first = pending.poll(1, TimeUnit.SECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    pending.drainTo(batch, batchSize - 1);
+                }
+                try {
+                    apply(batch);
+                } catch (RuntimeException e) {
+                    if (isTransient(e)) {
+                        throw e;
+                    }
+                    // Something in the batch fails on its own; find it by applying the entries one at a time
+                    applyOneByOne(batch, e);
+                }
+                wal.checkpoint(batch.get(batch.size() - 1).seq());
+                batch.clear();
+                backoffMillis = MIN_BACKOFF_MILLIS;
+            } catch (InterruptedException e) {
+                // Shutting down; whatever wasn't applied is replayed on the next start
+                return;
+            } catch (Exception e) {
+                log.warn("WAL flush failed, retrying in {} ms", backoffMillis, e);
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+            }
+        }
+    }
+
+    private void applyOneByOne(List<Pending> batch, RuntimeException batchFailure) {
+        if (batch.size() == 1) {
+            deadLetter(batch.get(0), batchFailure);
+            return;
+        }
+        for (Pending p : batch) {
+            try {
+                apply(List.of(p));
+            } catch (RuntimeException e) {
+                if (isTransient(e)) {
+                    // Retried as a whole batch; the entries applied so far are skipped then
+                    throw e;
+                }
+                deadLetter(p, e);
+            }
+        }
+    }
+
+    private void apply(List<Pending> batch) {
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.ORDERED, User.class);
+        List<Pending> queued = new ArrayList<>(batch.size());
+        List<Long> userIds = new ArrayList<>(batch.size());
+        for (Pending p : batch) {
+            Entry entry = p.entry();
+            Long userId = userIdOf(entry);
+            if (userId == null) {
+                continue;
+            }
+            userRekey.ensureMigrated("id", userId);
+            Document value;
+            try {
+                value = toDocument(mongoTemplate.getConverter(),
+                        objectMapper.treeToValue(entry.value(), entry.kind().type));
+            } catch (IOException | RuntimeException e) {
+                deadLetter(p, e);
+                continue;
+            }
+            // Skip entries this user has already absorbed, which makes replay idempotent
+            String walSeqField = "walSeqByLog." + wal.getLogId();
+            Query query = Query.query(Criteria.where("id").is(userId).and(walSeqField).not().gte(p.seq()));
+            bulk.updateOne(query, appendWithSeq(entry.kind().field, value, new Document(walSeqField, p.seq())));
+            queued.add(p);
+            userIds.add(userId);
+        }
+        int written = queued.size();
+        if (!queued.isEmpty()) {
+            try {
+                bulk.execute();
+            } catch (BulkOperationException e) {
+                if (e.getErrors().isEmpty()) {
+                    throw e;
+                }
+                // Ordered: the writes before the failed one went through, the ones after it never ran
+                written = e.getErrors().get(0).getIndex();
+                deadLetter(queued.get(written), e);
+                apply(queued.subList(written + 1, queued.size()));
+            }
+        }
+        for (int i = 0; i < written; i++) {
+            readRouter.markWritten(userIds.get(i));
+            if (queued.get(i).entry().name() != null) {
+                readRouter.markWritten(queued.get(i).entry().name());
+            }
+        }
+    }
+
+    /**
+     * Failures worth retrying the same batch for: MongoDB being unreachable,
+     * timeouts, retryable errors and write concern errors. Anything else is
+     * down to an entry and retrying would fail the same way.
+     */
+    static boolean isTransient(RuntimeException e) {
+        if (e instanceof BulkOperationException bulk) {
+            return bulk.getErrors().isEmpty();
+        }
+        if (e.getCause() instanceof MongoException mongo && mongo.hasErrorLabel("RetryableWriteError")) {
+            return true;
+        }
+        return e instanceof TransientDataAccessException || e instanceof DataAccessResourceFailureException
+                || e instanceof RecoverableDataAccessException;
+    }
+
+    /** Sets aside an entry that can't be applied; if even that fails, the entry is logged and dropped. */
+    private void deadLetter(Pending p, Exception cause) {
+        Entry entry = p.entry();
+        log.error("Dropping WAL entry {} for user {} from the flush: {}", p.seq(), entry.user(), cause.toString());
+        try {
+            mongoTemplate.insert(new Document("logId", wal.getLogId())
+                    .append("seq", p.seq())
+                    .append("kind", entry.kind().name())
+                    .append("userField", entry.userField())
+                    .append("user", entry.user())
+                    .append("name", entry.name())
+                    .append("value", entry.value().toString())
+                    .append("error", cause.toString())
+                    .append("failedAt", new Date()), DEAD_LETTERS);
+        } catch (RuntimeException e) {
+            log.error("Could not save WAL entry {} to {}; it is lost: {}", p.seq(), DEAD_LETTERS, entry.value(), e);
+        }
+    }
+
+    /** The id of the entry's user, or null if it was logged by a name that no longer exists. */
+    private Long userIdOf(Entry entry) {
+        if (entry.userField().equals("id")) {
+            return Long.parseLong(entry.user());
+        }
+        userRekey.ensureMigrated("name", entry.user());
+        Query query = Query.query(Criteria.where("name").is(entry.user())).with(Sort.by("id"));
+        query.fields().include("id");
+        User user = mongoTemplate.findOne(query, User.class);
+        return user != null ? user.getId() : null;
+    }
+
+    /** A history entry as stored in the user document, without the converter's type hint. */
+    static Document toDocument(MongoConverter converter, Object entry) {
+        Document value = new Document();
+        converter.write(entry, value);
+        value.remove("_class");
+        return value;
+    }
+
+    /**
+     * Pipeline update that bumps the user's syncSeq and appends {@code value}
+     * stamped with the new number, also setting the fields in {@code alsoSet}.
+     */
+    static AggregationUpdate appendWithSeq(String field, Document value, Document alsoSet) {
+        Document set = new Document("syncSeq",
+                new Document("$add", List.of(new Document("$ifNull", List.of("$syncSeq", 0L)), 1L)));
+        set.putAll(alsoSet);
+        AggregationOperation bumpSeq = context -> new Document("$set", set);
+        // $literal keeps user text such as "$5 lunch" from being read as a field path
+        Document stamped = new Document("$mergeObjects",
+                List.of(new Document("$literal", value), new Document("seq", "$syncSeq")));
+        AggregationOperation append = context -> new Document("$set", new Document(field,
+                new Document("$concatArrays", List.of(new Document("$ifNull", List.of("$" + field, List.of())),
+                        List.of(stamped)))));
+        return AggregationUpdate.from(List.of(bumpSeq, append));
+    }
+}
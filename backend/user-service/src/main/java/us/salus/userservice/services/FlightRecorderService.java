@@ -0,0 +1,391 @@
+package us.salus.userservice.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingFile;
+import us.salus.userservice.models.ProfilingStatus;
+import us.salus.userservice.services.RequestProfile.MongoCommandEvent;
+import us.salus.userservice.services.RequestProfile.RequestEvent;
+
+/**
+ * Keeps a continuous JDK Flight Recorder recording running, using the JDK's
+ * low-overhead "default" settings plus the {@link RequestEvent} and
+ * {@link MongoCommandEvent} events, holding the last {@code salus.jfr.max-age}
+ * (at most {@code salus.jfr.max-size}) in the JFR repository.
+ *
+ * When a request takes longer than {@code salus.jfr.slow-threshold}, the
+ * recording is dumped to {@code salus.jfr.dir} together with a JSON summary
+ * of that request: its event context, the MongoDB commands it ran and the
+ * allocation sites sampled on its thread while it ran, read from just the
+ * recording chunks that overlap the request. Dumps are written on a
+ * background thread, at most one per {@code salus.jfr.min-dump-interval}, and
+ * only the newest {@code salus.jfr.max-dumps} are kept. The {@code .jfr} files
+ * open in JDK Mission Control or {@code jfr print}.
+ *
+ * Environment variables and system properties are left out of the recording,
+ * as they carry the service's secrets.
+ */
+@Service
+@Lazy(false)
+public class FlightRecorderService {
+
+    private static final Logger log = LoggerFactory.getLogger(FlightRecorderService.class);
+
+    static final String RECORDING_NAME = "salus-continuous";
+    // Clocks differ slightly between the JVM and JFR timestamps; allow some slack around a request
+    private static final Duration CLOCK_SLACK = Duration.ofMillis(5);
+    private static final int TOP_ALLOCATION_SITES = 20;
+
+    private final ObjectMapper objectMapper;
+    private final boolean enabled;
+    private final Path dir;
+    private final Duration slowThreshold;
+    private final Duration minDumpInterval;
+    private final Duration maxAge;
+    private final DataSize maxSize;
+    private final int maxDumps;
+
+    private final AtomicLong lastSlowDump = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong dumpSeq = new AtomicLong();
+    private final ExecutorService dumper = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "jfr-dump");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Recording recording;
+
+    @Autowired
+    public FlightRecorderService(ObjectMapper objectMapper,
+                                 @Value("${salus.jfr.enabled:true}") boolean enabled,
+                                 @Value("${salus.jfr.dir:jfr}") Path dir,
+                                 @Value("${salus.jfr.slow-threshold:PT2S}") Duration slowThreshold,
+                                 @Value("${salus.jfr.min-dump-interval:PT1M}") Duration minDumpInterval,
+                                 @Value("${salus.jfr.max-age:PT10M}") Duration maxAge,
+                                 @Value("${salus.jfr.max-size:100MB}") DataSize maxSize,
+                                 @Value("${salus.jfr.max-dumps:20}") int maxDumps) {
+        this.objectMapper = objectMapper;
+        this.enabled = enabled;
+        this.dir = dir;
+        this.slowThreshold = slowThreshold;
+        this.minDumpInterval = minDumpInterval;
+        this.maxAge = maxAge;
+        this.maxSize = maxSize;
+        this.maxDumps = maxDumps;
+    }
+
+    @PostConstruct
+    void init() {
+        if (enabled) {
+            start();
+        }
+    }
+
+    @PreDestroy
+    synchronized void shutdown() {
+        dumper.shutdownNow();
+        if (recording != null) {
+            recording.close();
+            recording = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Starts the continuous recording; returns false if it was already running. */
+    public synchronized boolean start() {
+        if (isRecording()) {
+            return false;
+        }
+        try {
+            Recording started = new Recording(Configuration.getConfiguration("default"));
+            started.setName(RECORDING_NAME);
+            started.setToDisk(true);
+            started.setMaxAge(maxAge);
+            started.setMaxSize(maxSize.toBytes());
+            started.enable(RequestEvent.class).withThreshold(Duration.ZERO);
+            started.enable(MongoCommandEvent.class).withThreshold(Duration.ZERO);
+            started.disable("jdk.InitialEnvironmentVariable");
+            started.disable("jdk.InitialSystemProperty");
+            started.start();
+            recording = started;
+            return true;
+        } catch (IOException | ParseException | IllegalStateException | SecurityException e) {
+            log.error("Could not start flight recording", e);
+            return false;
+        }
+    }
+
+    /** Stops and discards the continuous recording; returns false if none was running. */
+    public synchronized boolean stop() {
+        if (!isRecording()) {
+            return false;
+        }
+        recording.close();
+        recording = null;
+        return true;
+    }
+
+    public synchronized boolean isRecording() {
+        return recording != null && recording.getState() == RecordingState.RUNNING;
+    }
+
+    public synchronized ProfilingStatus getStatus() {
+        ProfilingStatus status = new ProfilingStatus();
+        status.setRecording(isRecording());
+        status.setSlowThresholdMillis(slowThreshold.toMillis());
+        status.setMaxAgeSeconds(maxAge.toSeconds());
+        status.setDumps(listDumps());
+        return status;
+    }
+
+    /**
+     * Called for every finished request. Schedules a dump of the recording if
+     * the request was slow and no other slow request was dumped recently.
+     */
+    public void onRequestFinished(RequestProfile profile) {
+        if (profile.getDurationNanos() < slowThreshold.toNanos() || !isRecording()) {
+            return;
+        }
+        long now = System.nanoTime();
+        long last = lastSlowDump.get();
+        if (last != Long.MIN_VALUE && now - last < minDumpInterval.toNanos()) {
+            return;
+        }
+        if (lastSlowDump.compareAndSet(last, now)) {
+            dumper.submit(() -> {
+                try {
+                    String name = dump("slow", profile);
+                    log.warn("Slow request {} {} took {} ms; flight recording saved as {}", profile.getMethod(),
+                            profile.getUri(), profile.getDurationNanos() / 1_000_000, name);
+                } catch (Exception e) {
+                    log.error("Could not save flight recording of a slow request", e);
+                }
+            });
+        }
+    }
+
+    /** Dumps the recording on demand, e.g. from the ops endpoint, and returns the dump's name. */
+    public String dumpNow() throws Exception {
+        Future<String> dump = dumper.submit(() -> dump("manual", null));
+        return dump.get();
+    }
+
+    /** Dump names, newest first. */
+    public List<String> listDumps() {
+        if (!Files.isDirectory(dir)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(".jfr"))
+                    .sorted(Comparator.comparing(FlightRecorderService::dumpSeqOf).reversed())
+                    .toList();
+        } catch (IOException e) {
+            log.warn("Could not list flight recordings", e);
+            return new ArrayList<>();
+        }
+    }
+
+    /** The file of a dump or of its summary, if {@code name} is one of {@link #listDumps()}. */
+    public Optional<Path> resolveDump(String name) {
+        String recordingName = name.endsWith(".json") ? name.substring(0, name.length() - 5) + ".jfr" : name;
+        // Only names we listed ourselves, so a request can't reach outside the directory
+        if (!listDumps().contains(recordingName)) {
+            return Optional.empty();
+        }
+        Path file = dir.resolve(name);
+        return Files.isRegularFile(file) ? Optional.of(file) : Optional.empty();
+    }
+
+    /** Runs on the dump thread only, so dumps never interleave. */
+    private String dump(String kind, RequestProfile profile) throws IOException {
+        Recording current;
+        synchronized (this) {
+            if (!isRecording()) {
+                throw new IllegalStateException("No flight recording is running");
+            }
+            current = recording;
+        }
+        Files.createDirectories(dir);
+        String base = kind + "-" + System.currentTimeMillis() + "-" + dumpSeq.incrementAndGet();
+        Path jfr = dir.resolve(base + ".jfr");
+        // A stopped copy: the chunks of a running recording can't be read
+        try (Recording snapshot = current.copy(true)) {
+            snapshot.dump(jfr);
+            if (profile != null) {
+                writeSummary(snapshot, profile, dir.resolve(base + ".json"));
+            }
+        }
+        prune();
+        return jfr.getFileName().toString();
+    }
+
+    /** Summarizes only the chunks that overlap the request rather than parsing the whole dump. */
+    private void writeSummary(Recording snapshot, RequestProfile profile, Path summary) throws IOException {
+        Path window = summary.resolveSibling(summary.getFileName() + ".window");
+        Map<String, Object> summarized;
+        try {
+            Instant start = Instant.ofEpochMilli(profile.getStartMillis());
+            Instant end = start.plusNanos(profile.getDurationNanos());
+            try (InputStream chunks = snapshot.getStream(start.minus(CLOCK_SLACK), end.plus(CLOCK_SLACK))) {
+                if (chunks != null) {
+                    Files.copy(chunks, window);
+                }
+            }
+            summarized = summarize(profile, Files.exists(window) ? window : null);
+        } finally {
+            Files.deleteIfExists(window);
+        }
+        // Only complete summaries become visible to listings and downloads
+        Path partial = summary.resolveSibling(summary.getFileName() + ".tmp");
+        try {
+            objectMapper.writerWithDefaultPrettyPrinter().writeValue(partial.toFile(), summarized);
+            Files.move(partial, summary, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+
+    /**
+     * The request's context plus what the recording in {@code jfr} saw on its
+     * thread while it ran; {@code jfr} may be null if nothing was recorded then.
+     */
+    static Map<String, Object> summarize(RequestProfile profile, Path jfr) throws IOException {
+        Instant start = Instant.ofEpochMilli(profile.getStartMillis());
+        Instant end = start.plusNanos(profile.getDurationNanos());
+        Map<String, Object> request = new LinkedHashMap<>();
+        request.put("method", profile.getMethod());
+        request.put("route", profile.getRoute());
+        request.put("uri", profile.getUri());
+        request.put("user", profile.getUser());
+        request.put("status", profile.getStatus());
+        request.put("start", start.toString());
+        request.put("durationMillis", profile.getDurationNanos() / 1e6);
+        request.put("mongoMillis", profile.getMongoNanos() / 1e6);
+        request.put("mongoCommands", profile.getMongoCommands());
+        request.put("stravaMillis", profile.getStravaNanos() / 1e6);
+        request.put("bytesWritten", profile.getBytesWritten());
+
+        List<Map<String, Object>> commands = new ArrayList<>();
+        Map<String, Long> allocatedBySite = new HashMap<>();
+        long sampledBytes = 0;
+        Instant from = start.minus(CLOCK_SLACK);
+        Instant to = end.plus(CLOCK_SLACK);
+        try (RecordingFile events = jfr != null ? new RecordingFile(jfr) : null) {
+            while (events != null && events.hasMoreEvents()) {
+                RecordedEvent event = events.readEvent();
+                if (event.getThread() == null || event.getThread().getJavaThreadId() != profile.getThreadId()
+                        || event.getStartTime().isBefore(from) || event.getStartTime().isAfter(to)) {
+                    continue;
+                }
+                String type = event.getEventType().getName();
+                if (type.equals("us.salus.MongoCommand")) {
+                    Map<String, Object> command = new LinkedHashMap<>();
+                    command.put("command", event.getString("command"));
+                    command.put("collection", event.getString("collection"));
+                    command.put("durationMillis", event.getDuration().toNanos() / 1e6);
+                    command.put("succeeded", event.getBoolean("succeeded"));
+                    commands.add(command);
+                } else if (type.equals("jdk.ObjectAllocationSample")) {
+                    long weight = event.getLong("weight");
+                    sampledBytes += weight;
+                    allocatedBySite.merge(allocationSite(event), weight, Long::sum);
+                }
+            }
+        }
+        List<Map<String, Object>> allocations = allocatedBySite.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(TOP_ALLOCATION_SITES)
+                .map(entry -> {
+                    Map<String, Object> site = new LinkedHashMap<>();
+                    site.put("site", entry.getKey());
+                    site.put("bytes", entry.getValue());
+                    return site;
+                })
+                .toList();
+
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("request", request);
+        summary.put("mongoCommands", commands);
+        summary.put("sampledAllocationBytes", sampledBytes);
+        summary.put("allocationSites", allocations);
+        return summary;
+    }
+
+    private static String allocationSite(RecordedEvent event) {
+        String type = event.getClass("objectClass").getName();
+        if (event.getStackTrace() == null) {
+            return type;
+        }
+        // The first frame in our own code says more than the JDK internals below it
+        List<RecordedFrame> frames = event.getStackTrace().getFrames();
+        RecordedFrame frame = frames.stream()
+                .filter(f -> f.isJavaFrame() && f.getMethod().getType().getName().startsWith("us.salus."))
+                .findFirst()
+                .orElse(frames.isEmpty() ? null : frames.get(0));
+        if (frame == null) {
+            return type;
+        }
+        return type + " at " + frame.getMethod().getType().getName() + "." + frame.getMethod().getName()
+                + ":" + frame.getLineNumber();
+    }
+
+    /** Deletes all but the newest {@code maxDumps} dumps and their summaries. */
+    private void prune() throws IOException {
+        List<String> dumps = listDumps();
+        for (String name : dumps.subList(Math.min(maxDumps, dumps.size()), dumps.size())) {
+            String base = name.substring(0, name.length() - 4);
+            Files.deleteIfExists(dir.resolve(base + ".jfr"));
+            Files.deleteIfExists(dir.resolve(base + ".json"));
+        }
+    }
+
+    /** Orders dumps by time, then sequence number, from their name: {@code <kind>-<millis>-<seq>.jfr}. */
+    private static long dumpSeqOf(String name) {
+        String[] parts = name.substring(0, name.length() - 4).split("-");
+        try {
+            return Long.parseLong(parts[1]) * 1_000_000 + Long.parseLong(parts[parts.length - 1]) % 1_000_000;
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+}
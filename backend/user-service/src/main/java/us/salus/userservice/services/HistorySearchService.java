@@ -0,0 +1,370 @@
+package us.salus.userservice.services;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOperation;
+import org.springframework.data.mongodb.core.aggregation.TypedAggregation;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.bson.Document;
+import us.salus.userservice.models.SearchResults;
+import us.salus.userservice.models.User;
+import us.salus.userservice.services.DurableAppendService.HistoryKind;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Full-text search over a user's conversations and meal names.
+ *
+ * A MongoDB text index would rank whole user documents, not the entries inside
+ * them, so each searched user gets an in-memory inverted index instead, evicted
+ * least-recently-used once more than {@code salus.search.max-cached-users}
+ * users are indexed. Postings refer to entries by their position in the
+ * history list and the index keeps only what ranking and filtering need; the
+ * entries on the returned page are fetched from MongoDB by position. History
+ * lists only ever grow, so before each search the index loads the text of the
+ * entries past the ones it has seen, whichever node appended them; a first
+ * search loads every entry's text but nothing else of the user. A query only
+ * walks the postings of its own terms and ranks them with BM25, so its cost
+ * grows with the number of matching entries rather than the size of the history.
+ *
+ * Creating, updating, deleting or importing a user drops that user's index on
+ * this node. The same change made on another node is only noticed if it shrank
+ * a list; otherwise an index is rebuilt from scratch at most
+ * {@code salus.search.index-ttl} after it was built.
+ */
+@Service
+public class HistorySearchService {
+
+    public static final String CONVERSATION = "conversation";
+    public static final String MEAL = "meal";
+
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final Set<String> STOP_WORDS = Set.of(
+            "a", "an", "and", "are", "as", "at", "be", "but", "by", "did", "do", "for", "from", "how", "i", "in",
+            "is", "it", "me", "my", "of", "on", "or", "so", "that", "the", "this", "to", "was", "what", "with", "you");
+    private static final String CONVERSATIONS = HistoryKind.CONVERSATION.field;
+    private static final String MEALS = HistoryKind.MEAL.field;
+
+    private final MongoTemplate mongoTemplate;
+    private final UserRekeyService userRekey;
+    private final int maxCachedUsers;
+    private final Duration indexTtl;
+    private final Map<Long, UserIndex> indexes;
+
+    @Autowired
+    public HistorySearchService(MongoTemplate mongoTemplate,
+                                UserRekeyService userRekey,
+                                @Value("${salus.search.max-cached-users:1000}") int maxCachedUsers,
+                                @Value("${salus.search.index-ttl:PT10M}") Duration indexTtl) {
+        this.mongoTemplate = mongoTemplate;
+        this.userRekey = userRekey;
+        this.maxCachedUsers = maxCachedUsers;
+        this.indexTtl = indexTtl;
+        this.indexes = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, UserIndex> eldest) {
+                return size() > HistorySearchService.this.maxCachedUsers;
+            }
+        };
+    }
+
+    /**
+     * Ranked matches for {@code query} in the user's history, optionally limited
+     * to one {@code type} and a date range. Empty if the user doesn't exist.
+     */
+    public Optional<SearchResults> search(long userId, String query, String type,
+                                          ZonedDateTime startDate, ZonedDateTime endDate, int page, int size) {
+        Optional<UserIndex> index = index(userId);
+        if (index.isEmpty()) {
+            return Optional.empty();
+        }
+        Ranked ranked = index.get().search(tokenize(query), type, startDate, endDate, page, size);
+        return Optional.of(new SearchResults(ranked.total(), page, size, fetchHits(userId, ranked.hits())));
+    }
+
+    /** Drops the index of user {@code userId}; it is rebuilt on the next search. */
+    public void invalidate(long userId) {
+        synchronized (indexes) {
+            indexes.remove(userId);
+        }
+    }
+
+    private UserIndex cached(long userId) {
+        synchronized (indexes) {
+            return indexes.get(userId);
+        }
+    }
+
+    private Optional<UserIndex> index(long userId) {
+        UserIndex index = cached(userId);
+        if (index == null || index.builtAt + indexTtl.toNanos() <= System.nanoTime()) {
+            userRekey.ensureMigrated("id", userId);
+            index = new UserIndex();
+        }
+        synchronized (index) {
+            if (!catchUp(userId, index)) {
+                invalidate(userId);
+                return Optional.empty();
+            }
+        }
+        synchronized (indexes) {
+            indexes.put(userId, index);
+        }
+        return Optional.of(index);
+    }
+
+    /** Adds the entries appended since the index last looked; false if the user is gone. */
+    private boolean catchUp(long userId, UserIndex index) {
+        Document loaded = loadSince(userId, index.conversations, index.meals);
+        if (loaded == null) {
+            return false;
+        }
+        if (loaded.getInteger("conversationCount") < index.conversations || loaded.getInteger("mealCount") < index.meals) {
+            // A list was replaced rather than appended to, so positions no longer line up
+            index.clear();
+            loaded = loadSince(userId, 0, 0);
+            if (loaded == null) {
+                return false;
+            }
+        }
+        MongoConverter converter = mongoTemplate.getConverter();
+        for (Document entry : loaded.getList(CONVERSATIONS, Document.class)) {
+            index.add(converter.read(User.ConversationEntry.class, entry));
+        }
+        for (Document entry : loaded.getList(MEALS, Document.class)) {
+            index.add(converter.read(User.HistoricalMeal.class, entry));
+        }
+        return true;
+    }
+
+    /**
+     * The searchable fields of the conversations and meals from the given
+     * positions on, plus the length of both lists. Null if the user doesn't exist.
+     */
+    private Document loadSince(long userId, int conversations, int meals) {
+        AggregationOperation project = context -> new Document("$project", new Document()
+                .append("conversationCount", size(CONVERSATIONS))
+                .append("mealCount", size(MEALS))
+                .append(CONVERSATIONS, slice(CONVERSATIONS, conversations, "timestamp", "message", "response"))
+                .append(MEALS, slice(MEALS, meals, "timestamp", "name")));
+        TypedAggregation<User> aggregation = Aggregation.newAggregation(User.class,
+                Aggregation.match(Criteria.where("id").is(userId)), project);
+        return mongoTemplate.aggregate(aggregation, Document.class).getUniqueMappedResult();
+    }
+
+    private static Document size(String field) {
+        return new Document("$size", new Document("$ifNull", List.of("$" + field, List.of())));
+    }
+
+    // The entries of field from position from on, keeping only the given fields of each
+    private static Document slice(String field, int from, String... keep) {
+        Document fields = new Document();
+        for (String name : keep) {
+            fields.append(name, "$$entry." + name);
+        }
+        Document entries = new Document("$slice",
+                List.of(new Document("$ifNull", List.of("$" + field, List.of())), from, Integer.MAX_VALUE));
+        return new Document("$map", new Document("input", entries).append("as", "entry").append("in", fields));
+    }
+
+    /** Loads the ranked entries from MongoDB, in rank order. */
+    private List<SearchResults.Hit> fetchHits(long userId, List<Hit> ranked) {
+        List<SearchResults.Hit> hits = new ArrayList<>();
+        if (ranked.isEmpty()) {
+            return hits;
+        }
+        List<Document> conversations = new ArrayList<>();
+        List<Document> meals = new ArrayList<>();
+        for (Hit hit : ranked) {
+            (hit.type().equals(CONVERSATION) ? conversations : meals).add(new Document("$arrayElemAt",
+                    List.of("$" + (hit.type().equals(CONVERSATION) ? CONVERSATIONS : MEALS), hit.position())));
+        }
+        AggregationOperation project = context -> new Document("$project",
+                new Document(CONVERSATIONS, conversations).append(MEALS, meals));
+        TypedAggregation<User> aggregation = Aggregation.newAggregation(User.class,
+                Aggregation.match(Criteria.where("id").is(userId)), project);
+        User entries = mongoTemplate.aggregate(aggregation, User.class).getUniqueMappedResult();
+        if (entries == null) {
+            return hits;
+        }
+        Iterator<User.ConversationEntry> conversationEntries = entries.getConversationHistory().iterator();
+        Iterator<User.HistoricalMeal> mealEntries = entries.getHistoricalMeals().iterator();
+        for (Hit hit : ranked) {
+            if (hit.type().equals(CONVERSATION)) {
+                hits.add(new SearchResults.Hit(CONVERSATION, hit.score(), hit.timestamp(), conversationEntries.next(), null));
+            } else {
+                hits.add(new SearchResults.Hit(MEAL, hit.score(), hit.timestamp(), null, mealEntries.next()));
+            }
+        }
+        return hits;
+    }
+
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) {
+            return tokens;
+        }
+        for (String token : text.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+            if (token.length() > 1 && !STOP_WORDS.contains(token)) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    /** Posting list of one term: parallel arrays of document ids and term frequencies. */
+    private static final class Postings {
+        int[] docs = new int[4];
+        int[] freqs = new int[4];
+        int size;
+
+        void add(int doc, int freq) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                freqs = Arrays.copyOf(freqs, size * 2);
+            }
+            docs[size] = doc;
+            freqs[size] = freq;
+            size++;
+        }
+    }
+
+    /** An indexed entry: its type, its position in that type's history list and what filtering needs. */
+    private record Doc(String type, int position, ZonedDateTime timestamp, int length) {
+    }
+
+    private record Scored(int doc, double score) {
+    }
+
+    private record Hit(String type, int position, ZonedDateTime timestamp, double score) {
+    }
+
+    private record Ranked(long total, List<Hit> hits) {
+    }
+
+    /** Inverted index over one user's history. Callers synchronize on the index itself. */
+    private static final class UserIndex {
+        final long builtAt = System.nanoTime();
+        final List<Doc> docs = new ArrayList<>();
+        final Map<String, Postings> postings = new HashMap<>();
+        long totalLength;
+        // How many entries of each list are indexed, which is also the position of the next one
+        int conversations;
+        int meals;
+
+        void clear() {
+            docs.clear();
+            postings.clear();
+            totalLength = 0;
+            conversations = 0;
+            meals = 0;
+        }
+
+        void add(User.ConversationEntry entry) {
+            // Either side may be missing; joining them directly would index the word "null"
+            String text = Stream.of(entry.getMessage(), entry.getResponse())
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.joining(" "));
+            addDoc(CONVERSATION, conversations++, entry.getTimestamp(), text);
+        }
+
+        void add(User.HistoricalMeal meal) {
+            addDoc(MEAL, meals++, meal.getTimestamp(), meal.getName());
+        }
+
+        private void addDoc(String type, int position, ZonedDateTime timestamp, String text) {
+            List<String> tokens = tokenize(text);
+            int doc = docs.size();
+            docs.add(new Doc(type, position, timestamp, tokens.size()));
+            totalLength += tokens.size();
+
+            Map<String, Integer> freqs = new HashMap<>();
+            for (String token : tokens) {
+                freqs.merge(token, 1, Integer::sum);
+            }
+            freqs.forEach((term, freq) -> postings.computeIfAbsent(term, t -> new Postings()).add(doc, freq));
+        }
+
+        synchronized Ranked search(List<String> terms, String type,
+                                   ZonedDateTime startDate, ZonedDateTime endDate, int page, int size) {
+            int n = docs.size();
+            double avgLength = n == 0 ? 0 : (double) totalLength / n;
+            Map<Integer, Double> scores = new HashMap<>();
+            for (String term : terms) {
+                Postings list = postings.get(term);
+                if (list == null) {
+                    continue;
+                }
+                double idf = Math.log(1 + (n - list.size + 0.5) / (list.size + 0.5));
+                for (int i = 0; i < list.size; i++) {
+                    Doc doc = docs.get(list.docs[i]);
+                    if (!matches(doc, type, startDate, endDate)) {
+                        continue;
+                    }
+                    double tf = list.freqs[i];
+                    double norm = tf + K1 * (1 - B + B * doc.length() / avgLength);
+                    scores.merge(list.docs[i], idf * tf * (K1 + 1) / norm, Double::sum);
+                }
+            }
+
+            // In long: a large page times the size would overflow an int
+            long start = (long) page * size;
+            if (start >= scores.size()) {
+                return new Ranked(scores.size(), List.of());
+            }
+            // Keep only the top (page + 1) * size instead of sorting every match
+            long keep = start + size;
+            Comparator<Scored> byScore = Comparator.comparingDouble(Scored::score).thenComparingInt(s -> -s.doc());
+            PriorityQueue<Scored> top = new PriorityQueue<>(byScore);
+            scores.forEach((doc, score) -> {
+                top.add(new Scored(doc, score));
+                if (top.size() > keep) {
+                    top.poll();
+                }
+            });
+            List<Scored> ranked = new ArrayList<>(top);
+            ranked.sort(byScore.reversed());
+
+            List<Hit> hits = new ArrayList<>();
+            for (int i = (int) start; i < ranked.size(); i++) {
+                Scored scored = ranked.get(i);
+                Doc doc = docs.get(scored.doc());
+                hits.add(new Hit(doc.type(), doc.position(), doc.timestamp(), scored.score()));
+            }
+            return new Ranked(scores.size(), hits);
+        }
+
+        private static boolean matches(Doc doc, String type, ZonedDateTime startDate, ZonedDateTime endDate) {
+            if (type != null && !type.equals(doc.type())) {
+                return false;
+            }
+            if (startDate == null && endDate == null) {
+                return true;
+            }
+            ZonedDateTime timestamp = doc.timestamp();
+            return timestamp != null
+                    && (startDate == null || !timestamp.isBefore(startDate))
+                    && (endDate == null || !timestamp.isAfter(endDate));
+        }
+    }
+}
@@ -1,88 +1,98 @@
 package us.salus.userservice.services;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.OutputStream;
-import java.security.Key;
-import java.security.KeyFactory;
-import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
-import java.security.spec.PKCS8EncodedKeySpec;
-import java.security.spec.X509EncodedKeySpec;
+import java.time.Duration;
 import java.util.Date;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
 import com.auth0.jwt.JWT;
 import com.auth0.jwt.JWTVerifier;
 import com.auth0.jwt.algorithms.Algorithm;
 import com.auth0.jwt.exceptions.JWTVerificationException;
 import com.auth0.jwt.interfaces.DecodedJWT;
+import com.auth0.jwt.interfaces.RSAKeyProvider;
 
 import us.salus.userservice.models.User;
 
+/**
+ * Signs and verifies session tokens with the shared key ring. Tokens carry the
+ * signing key's id in their {@code kid} header, so any replica (or any service
+ * reading the JWKS) can verify them.
+ */
+@Service
 public class JWTService {
 
-  private RSAPrivateKey prv;
-  private RSAPublicKey pub;
-
-  public JWTService() {
-    File file = new File("keyfile");
-    if (!file.exists()) {
-      try {
-        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
-
-        KeyPair kp = kpg.generateKeyPair();
-        kpg.initialize(2048);
-
-        Key pub = kp.getPublic();
-        Key pvt = kp.getPrivate();
-
-        String outfile = "keyfile";
-        OutputStream out;
-        out = new FileOutputStream(outfile);
-        out.write(pvt.getEncoded());
-        out.close();
-
-        out = new FileOutputStream(outfile + ".pub");
-        out.write(pub.getEncoded());
-        out.close();
-      } catch (Exception e) {
-        System.out.println(e);
-      }
-    }
-
-    FileInputStream in;
+  private final KeyRingService keyRing;
+  private final Duration sessionLifetime;
+  private final JWTVerifier verifier;
 
-    try {
-      in = new FileInputStream("keyfile");
-      prv = (RSAPrivateKey) KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(in.readAllBytes()));
-      in.close();
-
-      in = new FileInputStream("keyfile.pub");
-      pub = (RSAPublicKey) KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(in.readAllBytes()));
-      in.close();
-    } catch (Exception e) {
-      System.out.println(e);
-    }
+  @Autowired
+  public JWTService(KeyRingService keyRing,
+      @Value("${salus.jwt.session-lifetime:P7D}") Duration sessionLifetime) {
+    this.keyRing = keyRing;
+    this.sessionLifetime = sessionLifetime;
+    this.verifier = JWT.require(Algorithm.RSA256(new KeyRingProvider())).build();
   }
 
   public String createJWT(User user) {
-    Algorithm algo = Algorithm.RSA256(pub, prv);
+    // Pin one key for the whole signature so a concurrent rotation can't mix kid and key
+    KeyRingService.LoadedKey key = keyRing.signingKey();
+    Date now = new Date();
     String jwtToken = JWT.create()
         .withClaim("user_id", user.getId())
-        .withIssuedAt(new Date())
-        .sign(algo);
+        .withIssuedAt(now)
+        .withExpiresAt(new Date(now.getTime() + sessionLifetime.toMillis()))
+        .sign(Algorithm.RSA256(new SigningKeyProvider(key)));
 
     return jwtToken;
   }
 
   public DecodedJWT verifyJWT(String jwt) throws JWTVerificationException {
-    Algorithm algo = Algorithm.RSA256(pub, prv);
-    JWTVerifier verifier = JWT.require(algo).build();
-
     return verifier.verify(jwt);
   }
 
+  private class KeyRingProvider implements RSAKeyProvider {
+    @Override
+    public RSAPublicKey getPublicKeyById(String kid) {
+      return keyRing.publicKey(kid);
+    }
+
+    @Override
+    public RSAPrivateKey getPrivateKey() {
+      return null;
+    }
+
+    @Override
+    public String getPrivateKeyId() {
+      return null;
+    }
+  }
+
+  private static class SigningKeyProvider implements RSAKeyProvider {
+    private final KeyRingService.LoadedKey key;
+
+    SigningKeyProvider(KeyRingService.LoadedKey key) {
+      this.key = key;
+    }
+
+    @Override
+    public RSAPublicKey getPublicKeyById(String kid) {
+      return key.publicKey();
+    }
+
+    @Override
+    public RSAPrivateKey getPrivateKey() {
+      return key.privateKey();
+    }
+
+    @Override
+    public String getPrivateKeyId() {
+      return key.kid();
+    }
+  }
+
 }
@@ -0,0 +1,201 @@
+package us.salus.userservice.services;
+
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import us.salus.userservice.models.SigningKey;
+import us.salus.userservice.repositories.SigningKeyRepository;
+
+/**
+ * Session signing keys shared by every replica through the signing_keys
+ * collection.
+ *
+ * Time is cut into rotation periods and each period has exactly one key, whose
+ * id is derived from the period number. Replicas that race to create the same
+ * key collide on the id, so exactly one insert wins and the others simply load
+ * it. A key is published {@code publish-ahead} before its period starts so
+ * verifiers that cache the JWKS already know it when the first token signed
+ * with it arrives, and it stays valid for one session lifetime after its
+ * period ends so sessions issued just before a rotation keep working.
+ *
+ * Not lazy: the rotation schedule has to start with the application.
+ */
+@Service
+@Lazy(false)
+public class KeyRingService {
+
+  // Lower bound between reloads triggered by tokens with an unknown key id
+  private static final Duration MIN_RELOAD_INTERVAL = Duration.ofSeconds(30);
+
+  private final SigningKeyRepository signingKeyRepository;
+  private final Duration rotationPeriod;
+  private final Duration sessionLifetime;
+  private final Duration publishAhead;
+
+  // Held while generating keys, so one thread does it and reload() isn't blocked meanwhile
+  private final Object rotation = new Object();
+
+  private volatile Map<String, LoadedKey> keys = Map.of();
+  private volatile Instant lastReload = Instant.EPOCH;
+
+  @Autowired
+  public KeyRingService(SigningKeyRepository signingKeyRepository,
+      @Value("${salus.jwt.rotation-period:P7D}") Duration rotationPeriod,
+      @Value("${salus.jwt.session-lifetime:P7D}") Duration sessionLifetime,
+      @Value("${salus.jwt.publish-ahead:PT1H}") Duration publishAhead) {
+    this.signingKeyRepository = signingKeyRepository;
+    this.rotationPeriod = rotationPeriod;
+    this.sessionLifetime = sessionLifetime;
+    this.publishAhead = publishAhead;
+  }
+
+  public record LoadedKey(String kid, RSAPublicKey publicKey, RSAPrivateKey privateKey,
+      ZonedDateTime activatesAt, ZonedDateTime expiresAt) {
+  }
+
+  /**
+   * Makes sure the current period's key exists, pre-publishes the next one when
+   * it is due, drops expired keys and reloads the ring.
+   */
+  @Scheduled(fixedDelayString = "${salus.jwt.rotation-check:PT10M}")
+  public void rotate() {
+    synchronized (rotation) {
+      ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+      long period = now.toEpochSecond() / rotationPeriod.toSeconds();
+      List<SigningKey> created = new ArrayList<>();
+      newKey(period, now, created);
+      if (!now.plus(publishAhead).isBefore(periodStart(period + 1))) {
+        newKey(period + 1, now, created);
+      }
+      synchronized (this) {
+        for (SigningKey key : created) {
+          try {
+            signingKeyRepository.insert(key);
+          } catch (DuplicateKeyException e) {
+            // Another replica created this period's key first; reload() picks up theirs
+          }
+        }
+        signingKeyRepository.deleteByExpiresAtBefore(now);
+        reload();
+      }
+    }
+  }
+
+  /** The key new sessions are signed with: the most recently activated one. */
+  public LoadedKey signingKey() {
+    LoadedKey current = currentSigningKey();
+    if (current == null) {
+      rotate();
+      current = currentSigningKey();
+    }
+    if (current == null) {
+      throw new IllegalStateException("No active signing key");
+    }
+    return current;
+  }
+
+  /**
+   * Public key for {@code kid}, or null if it is unknown or expired. An unknown
+   * id triggers a reload (at most every 30 seconds) in case another replica has
+   * just created that key.
+   */
+  public RSAPublicKey publicKey(String kid) {
+    if (kid == null) {
+      return null;
+    }
+    LoadedKey key = keys.get(kid);
+    if (key == null && Instant.now().isAfter(lastReload.plus(MIN_RELOAD_INTERVAL))) {
+      reload();
+      key = keys.get(kid);
+    }
+    if (key == null || key.expiresAt().isBefore(ZonedDateTime.now(ZoneOffset.UTC))) {
+      return null;
+    }
+    return key.publicKey();
+  }
+
+  /** Every key a verifier should currently accept, for the JWKS endpoint. */
+  public List<LoadedKey> publishedKeys() {
+    if (keys.isEmpty()) {
+      signingKey();
+    }
+    return List.copyOf(keys.values());
+  }
+
+  private LoadedKey currentSigningKey() {
+    ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+    LoadedKey current = null;
+    for (LoadedKey key : keys.values()) {
+      if (!key.activatesAt().isAfter(now) && key.expiresAt().isAfter(now)
+          && (current == null || key.activatesAt().isAfter(current.activatesAt()))) {
+        current = key;
+      }
+    }
+    return current;
+  }
+
+  /** Generates {@code period}'s key into {@code created} unless it already exists. */
+  private void newKey(long period, ZonedDateTime now, List<SigningKey> created) {
+    String kid = rotationPeriod.toSeconds() + "-" + period;
+    if (signingKeyRepository.existsById(kid)) {
+      return;
+    }
+    KeyPair kp = generateKeyPair();
+    created.add(new SigningKey(kid, kp.getPublic().getEncoded(), kp.getPrivate().getEncoded(), now,
+        periodStart(period), periodStart(period + 1).plus(sessionLifetime)));
+  }
+
+  private synchronized void reload() {
+    ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+    Map<String, LoadedKey> loaded = new HashMap<>();
+    try {
+      KeyFactory kf = KeyFactory.getInstance("RSA");
+      for (SigningKey key : signingKeyRepository.findByExpiresAtAfter(now)) {
+        loaded.put(key.getKid(), new LoadedKey(key.getKid(),
+            (RSAPublicKey) kf.generatePublic(new X509EncodedKeySpec(key.getPublicKey())),
+            (RSAPrivateKey) kf.generatePrivate(new PKCS8EncodedKeySpec(key.getPrivateKey())),
+            key.getActivatesAt(), key.getExpiresAt()));
+      }
+    } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+      throw new IllegalStateException("Unreadable signing key", e);
+    }
+    keys = Map.copyOf(loaded);
+    lastReload = Instant.now();
+  }
+
+  private ZonedDateTime periodStart(long period) {
+    return Instant.ofEpochSecond(period * rotationPeriod.toSeconds()).atZone(ZoneOffset.UTC);
+  }
+
+  private static KeyPair generateKeyPair() {
+    try {
+      KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+      kpg.initialize(2048);
+      return kpg.generateKeyPair();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
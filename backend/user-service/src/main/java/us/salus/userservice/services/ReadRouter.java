@@ -0,0 +1,114 @@
+package us.salus.userservice.services;
+
+import java.time.Duration;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.mongodb.ReadPreference;
+
+/**
+ * Decides whether a read may be served by a secondary.
+ *
+ * Only the operations listed in {@code salus.mongo.secondary-reads} are ever
+ * routed away from the primary, and only with a {@code maxStalenessSeconds}
+ * bound. A user who has written within the staleness bound reads from the
+ * primary again so they always see their own writes: this node remembers
+ * its recent writers, and {@link us.salus.userservice.ReadYourWritesFilter}
+ * carries the same guarantee across nodes with a cookie.
+ */
+@Service
+public class ReadRouter {
+
+    /** Read paths that can be routed independently. */
+    public enum ReadOperation {
+        USER_LIST,
+        HISTORY,
+        HISTORY_RANGE,
+        ANALYTICS;
+
+        static ReadOperation fromKey(String key) {
+            return valueOf(key.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    // MongoDB rejects a smaller maxStalenessSeconds, but only once a query uses it
+    static final Duration MIN_MAX_STALENESS = Duration.ofSeconds(90);
+
+    private static final ThreadLocal<Boolean> PRIMARY_FOR_REQUEST = ThreadLocal.withInitial(() -> false);
+
+    private final Set<ReadOperation> secondaryReads = EnumSet.noneOf(ReadOperation.class);
+    private final Duration maxStaleness;
+    private final ReadPreference secondary;
+    // User key -> nanoTime of that user's last write through this node
+    private final Map<Object, Long> recentWrites = new ConcurrentHashMap<>();
+
+    @Autowired
+    public ReadRouter(@Value("${salus.mongo.secondary-reads:}") List<String> secondaryReads,
+                      @Value("${salus.mongo.max-staleness:PT90S}") Duration maxStaleness) {
+        for (String key : secondaryReads) {
+            if (!key.isBlank()) {
+                this.secondaryReads.add(ReadOperation.fromKey(key));
+            }
+        }
+        if (maxStaleness.compareTo(MIN_MAX_STALENESS) < 0) {
+            throw new IllegalArgumentException("salus.mongo.max-staleness must be at least "
+                    + MIN_MAX_STALENESS.toSeconds() + "s, was " + maxStaleness.toSeconds() + "s");
+        }
+        this.maxStaleness = maxStaleness;
+        this.secondary = ReadPreference.secondaryPreferred(maxStaleness.toSeconds(), TimeUnit.SECONDS);
+    }
+
+    public ReadPreference preferenceFor(ReadOperation operation) {
+        return preferenceFor(operation, null);
+    }
+
+    /**
+     * Read preference for {@code operation} on behalf of the user identified by
+     * {@code userKey} (null for reads that aren't about a single user).
+     */
+    public ReadPreference preferenceFor(ReadOperation operation, Object userKey) {
+        if (!secondaryReads.contains(operation) || PRIMARY_FOR_REQUEST.get()) {
+            return ReadPreference.primary();
+        }
+        if (userKey != null) {
+            Long writtenAt = recentWrites.get(userKey);
+            if (writtenAt != null) {
+                if (System.nanoTime() - writtenAt < maxStaleness.toNanos()) {
+                    return ReadPreference.primary();
+                }
+                recentWrites.remove(userKey, writtenAt);
+            }
+        }
+        return secondary;
+    }
+
+    /** Records that {@code userKey} was just written, pinning their reads to the primary for a while. */
+    public void markWritten(Object userKey) {
+        recentWrites.put(userKey, System.nanoTime());
+        if (recentWrites.size() > 10_000) {
+            long cutoff = System.nanoTime() - maxStaleness.toNanos();
+            recentWrites.values().removeIf(writtenAt -> writtenAt < cutoff);
+        }
+    }
+
+    /** Pins every read on the current thread to the primary until {@link #clearRequest()}. */
+    public void pinRequestToPrimary() {
+        PRIMARY_FOR_REQUEST.set(true);
+    }
+
+    public void clearRequest() {
+        PRIMARY_FOR_REQUEST.remove();
+    }
+
+    public Duration getMaxStaleness() {
+        return maxStaleness;
+    }
+}
@@ -0,0 +1,231 @@
+package us.salus.userservice.services;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.bson.BsonValue;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Where one request's time went: MongoDB, Strava and bytes written, collected
+ * on the request thread and emitted as a {@link RequestEvent} when the request
+ * ends. MongoDB commands run on the caller's thread with the sync driver, so
+ * {@link MongoListener} can charge them to the current request; work handed to
+ * other threads (background flushes, streamed exports) isn't attributed.
+ */
+public final class RequestProfile {
+
+    private static final ThreadLocal<RequestProfile> CURRENT = new ThreadLocal<>();
+
+    @Name("us.salus.Request")
+    @Label("HTTP Request")
+    @Category({"Salus", "HTTP"})
+    public static class RequestEvent extends Event {
+        @Label("Method")
+        public String method;
+        @Label("Route")
+        @Description("Matched route template, or the raw path if none matched")
+        public String route;
+        @Label("User")
+        @Description("Id or name of the user the route addresses, if any")
+        public String user;
+        @Label("Status")
+        public int status;
+        @Label("MongoDB Time")
+        @Timespan(Timespan.NANOSECONDS)
+        public long mongoTime;
+        @Label("MongoDB Commands")
+        public int mongoCommands;
+        @Label("Strava Time")
+        @Timespan(Timespan.NANOSECONDS)
+        public long stravaTime;
+        @Label("Bytes Written")
+        @DataAmount
+        public long bytesWritten;
+    }
+
+    @Name("us.salus.MongoCommand")
+    @Label("MongoDB Command")
+    @Category({"Salus", "MongoDB"})
+    public static class MongoCommandEvent extends Event {
+        @Label("Command")
+        public String command;
+        @Label("Database")
+        public String database;
+        @Label("Collection")
+        public String collection;
+        @Label("Succeeded")
+        public boolean succeeded;
+    }
+
+    private final RequestEvent event = new RequestEvent();
+    private final long startNanos = System.nanoTime();
+    private final long startMillis = System.currentTimeMillis();
+    private final long threadId = Thread.currentThread().getId();
+    private final String uri;
+    private long durationNanos;
+
+    private RequestProfile(String method, String uri) {
+        this.uri = uri;
+        event.method = method;
+        event.route = uri;
+        event.begin();
+    }
+
+    /** Starts profiling a request on the current thread. */
+    public static RequestProfile begin(String method, String uri) {
+        RequestProfile profile = new RequestProfile(method, uri);
+        CURRENT.set(profile);
+        return profile;
+    }
+
+    /** Detaches the profile from the current thread; it can still be finished later, e.g. by an async listener. */
+    public void detach() {
+        if (CURRENT.get() == this) {
+            CURRENT.remove();
+        }
+    }
+
+    /** Ends the request and commits its {@link RequestEvent}. */
+    public void finish(String route, String user, int status, long bytesWritten) {
+        detach();
+        durationNanos = System.nanoTime() - startNanos;
+        if (route != null) {
+            event.route = route;
+        }
+        event.user = user;
+        event.status = status;
+        event.bytesWritten = bytesWritten;
+        event.end();
+        if (event.shouldCommit()) {
+            event.commit();
+        }
+    }
+
+    /** Runs a Strava call and charges its time to the current request, if any. */
+    public static <T> T timeStrava(Supplier<T> call) {
+        RequestProfile profile = CURRENT.get();
+        long start = System.nanoTime();
+        try {
+            return call.get();
+        } finally {
+            if (profile != null) {
+                profile.event.stravaTime += System.nanoTime() - start;
+            }
+        }
+    }
+
+    public String getMethod() {
+        return event.method;
+    }
+
+    public String getRoute() {
+        return event.route;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public String getUser() {
+        return event.user;
+    }
+
+    public int getStatus() {
+        return event.status;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public long getThreadId() {
+        return threadId;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    public long getMongoNanos() {
+        return event.mongoTime;
+    }
+
+    public int getMongoCommands() {
+        return event.mongoCommands;
+    }
+
+    public long getStravaNanos() {
+        return event.stravaTime;
+    }
+
+    public long getBytesWritten() {
+        return event.bytesWritten;
+    }
+
+    /**
+     * Emits a {@link MongoCommandEvent} per command and adds its time to the
+     * request running on the same thread.
+     */
+    public static class MongoListener implements CommandListener {
+
+        private final Map<Integer, MongoCommandEvent> running = new ConcurrentHashMap<>();
+
+        @Override
+        public void commandStarted(CommandStartedEvent started) {
+            MongoCommandEvent event = new MongoCommandEvent();
+            if (!event.isEnabled()) {
+                return;
+            }
+            event.command = started.getCommandName();
+            event.database = started.getDatabaseName();
+            // For collection commands the command's own field holds the collection name
+            BsonValue target = started.getCommand().get(started.getCommandName());
+            if (target != null && target.isString()) {
+                event.collection = target.asString().getValue();
+            }
+            event.begin();
+            running.put(started.getRequestId(), event);
+        }
+
+        @Override
+        public void commandSucceeded(CommandSucceededEvent succeeded) {
+            finish(succeeded.getRequestId(), succeeded.getElapsedTime(TimeUnit.NANOSECONDS), true);
+        }
+
+        @Override
+        public void commandFailed(CommandFailedEvent failed) {
+            finish(failed.getRequestId(), failed.getElapsedTime(TimeUnit.NANOSECONDS), false);
+        }
+
+        private void finish(int requestId, long elapsedNanos, boolean succeeded) {
+            RequestProfile profile = CURRENT.get();
+            if (profile != null) {
+                profile.event.mongoTime += elapsedNanos;
+                profile.event.mongoCommands++;
+            }
+            MongoCommandEvent event = running.remove(requestId);
+            if (event != null) {
+                event.succeeded = succeeded;
+                event.end();
+                if (event.shouldCommit()) {
+                    event.commit();
+                }
+            }
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package us.salus.userservice.services;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestClient;
 
@@ -8,14 +10,26 @@ import us.salus.userservice.models.TokenResponse;
 
 @Service
 public class StravaAuthService {
-  public static TokenResponse getToken(String code) {
-    RestClient restClient = RestClient.builder().build();
 
-    return restClient
+  private final String oauthUrl;
+  private final RestClient restClient;
+
+  @Autowired
+  public StravaAuthService(@Value("${salus.strava.oauth-url}") String oauthUrl) {
+    this.oauthUrl = oauthUrl;
+    this.restClient = RestClient.builder().baseUrl(oauthUrl).build();
+  }
+
+  public String getOauthUrl() {
+    return oauthUrl;
+  }
+
+  public TokenResponse getToken(String code) {
+    return RequestProfile.timeStrava(() -> restClient
         .post()
-        .uri("https://www.strava.com/oauth/token")
+        .uri("/token")
         .body(new AuthCodeRequest(code))
         .retrieve()
-        .body(TokenResponse.class);
+        .body(TokenResponse.class));
   }
 }
@@ -1,5 +1,7 @@
 package us.salus.userservice.services;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestClient;
 
@@ -8,15 +10,20 @@ import us.salus.userservice.models.Athlete;
 @Service
 public class StravaService {
 
-  public static Athlete getAthlete(String token) {
-    RestClient restClient = RestClient.builder().baseUrl("https://www.strava.com/api/v3").build();
+  private final RestClient restClient;
 
-    return restClient
+  @Autowired
+  public StravaService(@Value("${salus.strava.api-url}") String apiUrl) {
+    this.restClient = RestClient.builder().baseUrl(apiUrl).build();
+  }
+
+  public Athlete getAthlete(String token) {
+    return RequestProfile.timeStrava(() -> restClient
         .get()
         .uri("/athlete")
         .header("Authorization", "Bearer " + token)
         .retrieve()
-        .body(Athlete.class);
+        .body(Athlete.class));
   }
 
 }
@@ -0,0 +1,236 @@
+package us.salus.userservice.services;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.HashedIndex;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import us.salus.userservice.models.User;
+
+/**
+ * Moves users from the legacy {@code users} collection, keyed by first name,
+ * to the collection of {@link User}, keyed by the numeric Strava id.
+ *
+ * MongoDB can't change a document's {@code _id}, so each user is copied to the
+ * new collection and then removed from the legacy one. A background thread
+ * backfills in batches of {@code salus.rekey.batch-size}, pausing
+ * {@code salus.rekey.batch-pause} between batches. Until it finishes, every
+ * single-user lookup calls {@link #ensureMigrated} first, which moves that
+ * user's legacy document on demand (dual read). The application only ever
+ * writes to the new collection.
+ *
+ * The new collection gets a hashed index on {@code _id}, so it can be sharded
+ * with {@code sh.shardCollection("<db>.users_by_id", { _id: "hashed" })}, and
+ * an index on {@code name} for the name-based routes. When two legacy users
+ * share an id, the first one moved wins and the other is kept in
+ * {@code users_rekey_conflicts} for manual review. Legacy users without an id
+ * can't be keyed and stay where they are.
+ */
+@Service
+@Lazy(false)
+public class UserRekeyService {
+
+    public static final String LEGACY_COLLECTION = "users";
+    public static final String CONFLICTS_COLLECTION = "users_rekey_conflicts";
+
+    private static final Logger log = LoggerFactory.getLogger(UserRekeyService.class);
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
+
+    private final MongoTemplate mongoTemplate;
+    private final boolean enabled;
+    private final int batchSize;
+    private final Duration batchPause;
+
+    private Thread backfill;
+    private volatile boolean complete;
+
+    @Autowired
+    public UserRekeyService(MongoTemplate mongoTemplate,
+                            @Value("${salus.rekey.enabled:true}") boolean enabled,
+                            @Value("${salus.rekey.batch-size:500}") int batchSize,
+                            @Value("${salus.rekey.batch-pause:PT0.1S}") Duration batchPause) {
+        this.mongoTemplate = mongoTemplate;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.batchPause = batchPause;
+        this.complete = !enabled;
+    }
+
+    @PostConstruct
+    void start() {
+        if (!enabled) {
+            return;
+        }
+        // Runs in the background so startup never waits on MongoDB
+        backfill = new Thread(this::backfillLoop, "user-rekey");
+        backfill.setDaemon(true);
+        backfill.start();
+    }
+
+    @PreDestroy
+    void stop() {
+        if (backfill != null) {
+            backfill.interrupt();
+        }
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Moves the legacy document of the user whose {@code field} ("id" or "name")
+     * is {@code value}, if there still is one. Cheap once the backfill is done.
+     */
+    public void ensureMigrated(String field, Object value) {
+        if (complete) {
+            return;
+        }
+        // In the legacy collection the name is the _id
+        String legacyField = field.equals("name") ? "_id" : field;
+        Document legacy = mongoTemplate.findOne(Query.query(Criteria.where(legacyField).is(value)),
+                Document.class, LEGACY_COLLECTION);
+        if (legacy != null) {
+            move(legacy);
+        }
+    }
+
+    /** Legacy users not moved yet, as they will look once moved. Empty once the backfill is done. */
+    public List<User> legacyUsers() {
+        List<User> users = new ArrayList<>();
+        if (complete) {
+            return users;
+        }
+        for (Document legacy : mongoTemplate.findAll(Document.class, LEGACY_COLLECTION)) {
+            Document rekeyed = rekey(legacy);
+            if (rekeyed != null) {
+                users.add(mongoTemplate.getConverter().read(User.class, rekeyed));
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Like {@link #legacyUsers()}, but read off a cursor and limited to
+     * {@code fields}, for scans over every user. Close the stream when done.
+     */
+    public Stream<User> streamLegacyUsers(String... fields) {
+        if (complete) {
+            return Stream.empty();
+        }
+        Query query = new Query();
+        query.fields().include(fields).include("id");
+        return mongoTemplate.stream(query, Document.class, LEGACY_COLLECTION)
+                .map(UserRekeyService::rekey)
+                .filter(Objects::nonNull)
+                .map(rekeyed -> mongoTemplate.getConverter().read(User.class, rekeyed));
+    }
+
+    /** Runs one backfill batch and returns how many users it moved; 0 means nothing is left. */
+    int backfillBatch() {
+        Query query = Query.query(Criteria.where("id").gt(0)).limit(batchSize);
+        int moved = 0;
+        for (Document legacy : mongoTemplate.find(query, Document.class, LEGACY_COLLECTION)) {
+            if (move(legacy)) {
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    private void backfillLoop() {
+        long backoffMillis = batchPause.toMillis();
+        boolean indexed = false;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                if (!indexed) {
+                    ensureIndexes();
+                    indexed = true;
+                }
+                if (backfillBatch() == 0) {
+                    complete = true;
+                    long stranded = mongoTemplate.count(new Query(), LEGACY_COLLECTION);
+                    if (stranded > 0) {
+                        log.warn("Re-keying done; {} legacy users without an id were left in {}", stranded,
+                                LEGACY_COLLECTION);
+                    }
+                    return;
+                }
+                backoffMillis = batchPause.toMillis();
+                Thread.sleep(backoffMillis);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                log.warn("Re-keying batch failed, retrying in {} ms", backoffMillis, e);
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                backoffMillis = Math.min(Math.max(backoffMillis * 2, 100), MAX_BACKOFF_MILLIS);
+            }
+        }
+    }
+
+    private void ensureIndexes() {
+        mongoTemplate.indexOps(User.class).ensureIndex(HashedIndex.hashed("_id"));
+        mongoTemplate.indexOps(User.class).ensureIndex(new Index().on("name", Sort.Direction.ASC));
+        if (mongoTemplate.collectionExists(LEGACY_COLLECTION)) {
+            // Lets dual reads by id avoid a collection scan
+            mongoTemplate.indexOps(LEGACY_COLLECTION).ensureIndex(new Index().on("id", Sort.Direction.ASC));
+        }
+    }
+
+    /** Copies one legacy user to the new collection and removes it from the legacy one. */
+    private boolean move(Document legacy) {
+        Document rekeyed = rekey(legacy);
+        if (rekeyed == null) {
+            return false;
+        }
+        try {
+            mongoTemplate.insert(rekeyed, mongoTemplate.getCollectionName(User.class));
+        } catch (DuplicateKeyException e) {
+            // Either a concurrent move of the same user, or a different user with the same id
+            Document existing = mongoTemplate.findById(rekeyed.get("_id"), Document.class,
+                    mongoTemplate.getCollectionName(User.class));
+            if (existing == null || !Objects.equals(existing.get("name"), rekeyed.get("name"))) {
+                mongoTemplate.save(legacy, CONFLICTS_COLLECTION);
+            }
+        }
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is(legacy.get("_id"))), LEGACY_COLLECTION);
+        return true;
+    }
+
+    /** The legacy document keyed by id instead of name, or null if it has no usable id. */
+    static Document rekey(Document legacy) {
+        if (!(legacy.get("id") instanceof Number id) || id.longValue() <= 0) {
+            return null;
+        }
+        Document rekeyed = new Document("_id", id.longValue());
+        legacy.forEach((key, value) -> {
+            if (!key.equals("_id") && !key.equals("id")) {
+                rekeyed.put(key, value);
+            }
+        });
+        rekeyed.put("name", legacy.get("_id"));
+        return rekeyed;
+    }
+}
@@ -1,12 +1,28 @@
 package us.salus.userservice.services;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOptions;
+import org.springframework.data.mongodb.core.aggregation.ArrayOperators;
+import org.springframework.data.mongodb.core.aggregation.ComparisonOperators;
+import org.springframework.data.mongodb.core.aggregation.ProjectionOperation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
+import org.bson.Document;
+import us.salus.userservice.models.HistoryChanges;
 import us.salus.userservice.models.User;
 import us.salus.userservice.repositories.UserRepository;
+import us.salus.userservice.services.DurableAppendService.HistoryKind;
+import us.salus.userservice.services.ReadRouter.ReadOperation;
 import java.util.stream.Collectors;
 
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 
@@ -14,54 +30,143 @@ import java.util.Optional;
 public class UserService {
 
     private final UserRepository userRepository;
+    private final MongoTemplate mongoTemplate;
+    private final ReadRouter readRouter;
+    private final HistorySearchService historySearch;
+    private final UserRekeyService userRekey;
 
     @Autowired
-    public UserService(UserRepository userRepository) {
+    public UserService(UserRepository userRepository, MongoTemplate mongoTemplate, ReadRouter readRouter,
+                       HistorySearchService historySearch, UserRekeyService userRekey) {
         this.userRepository = userRepository;
+        this.mongoTemplate = mongoTemplate;
+        this.readRouter = readRouter;
+        this.historySearch = historySearch;
+        this.userRekey = userRekey;
+    }
+
+    // Users are keyed by id; a name is a secondary lookup that resolves to the lowest id with that name
+    private Optional<User> findByName(String name) {
+        userRekey.ensureMigrated("name", name);
+        return userRepository.findFirstByNameOrderByIdAsc(name);
+    }
+
+    private Optional<User> findById(long id) {
+        userRekey.ensureMigrated("id", id);
+        return userRepository.findById(id);
+    }
+
+    // Routed reads: these may be served by a secondary, see ReadRouter
+    private Optional<User> findForRead(ReadOperation operation, String field, Object value) {
+        userRekey.ensureMigrated(field, value);
+        Query query = Query.query(Criteria.where(field).is(value))
+                .with(Sort.by("id"))
+                .withReadPreference(readRouter.preferenceFor(operation, value));
+        return Optional.ofNullable(mongoTemplate.findOne(query, User.class));
+    }
+
+    // Resolves a name to its user's id without loading the user's history
+    private Optional<Long> findIdByName(String name) {
+        userRekey.ensureMigrated("name", name);
+        Query query = Query.query(Criteria.where("name").is(name)).with(Sort.by("id"));
+        query.fields().include("id");
+        return Optional.ofNullable(mongoTemplate.findOne(query, User.class)).map(User::getId);
+    }
+
+    private User track(User user) {
+        readRouter.markWritten(user.getName());
+        readRouter.markWritten(user.getId());
+        return user;
+    }
+
+    /**
+     * Appends {@code entry} to one of user {@code id}'s history lists and stamps
+     * it with the next syncSeq in a single update, so concurrent appends (other
+     * requests, other nodes, the WAL flusher) can't overwrite each other the way
+     * a read-modify-save would. Returns the updated user, or null if there is none.
+     */
+    private User append(long id, HistoryKind kind, Object entry) {
+        User updated = mongoTemplate.findAndModify(Query.query(Criteria.where("id").is(id)),
+                DurableAppendService.appendWithSeq(kind.field,
+                        DurableAppendService.toDocument(mongoTemplate.getConverter(), entry), new Document()),
+                FindAndModifyOptions.options().returnNew(true), User.class);
+        return updated != null ? track(updated) : null;
+    }
+
+    private User appendById(long id, HistoryKind kind, Object entry) {
+        userRekey.ensureMigrated("id", id);
+        return append(id, kind, entry);
+    }
+
+    private User appendByName(String name, HistoryKind kind, Object entry) {
+        return findIdByName(name).map(id -> append(id, kind, entry)).orElse(null);
+    }
+
+    private static <T> T last(List<T> list) {
+        return list.get(list.size() - 1);
     }
 
     // Basic CRUD operations
     public List<User> getAllUsers() {
-        return userRepository.findAll();
+        List<User> users = new ArrayList<>(mongoTemplate.find(
+                new Query().withReadPreference(readRouter.preferenceFor(ReadOperation.USER_LIST)), User.class));
+        // Dual read while re-keying: users still in the legacy collection are listed too
+        users.addAll(userRekey.legacyUsers());
+        return users;
     }
 
     public Optional<User> getUserByName(String name) {
-        return userRepository.findById(name);
+        return findByName(name);
     }
 
     public Optional<User> getUserById(long id) {
-        // Find user by the numeric id field, not the MongoDB document id
-        return userRepository.findAll().stream()
-                .filter(user -> user.getId() == id)
-                .findFirst();
+        return findById(id);
+    }
+
+    public Optional<Long> getUserIdByName(String name) {
+        return findIdByName(name);
     }
 
+    public boolean userExists(long id) {
+        userRekey.ensureMigrated("id", id);
+        return mongoTemplate.exists(Query.query(Criteria.where("id").is(id)), User.class);
+    }
+
+    /**
+     * Creates a new user. Fails with {@link org.springframework.dao.DuplicateKeyException}
+     * if a user with that id exists, including one not yet moved from the legacy collection.
+     */
     public User createUser(User user) {
-        return userRepository.save(user);
+        userRekey.ensureMigrated("id", user.getId());
+        User created = userRepository.insert(user);
+        historySearch.invalidate(user.getId());
+        return track(created);
     }
 
     public Optional<User> updateUser(String name, User userDetails) {
-        Optional<User> userOptional = userRepository.findById(name);
-        if (userOptional.isPresent()) {
-            User existingUser = userOptional.get();
-            // Update user fields (preserving the name as it's the document ID)
-            existingUser.setId(userDetails.getId());
-            existingUser.setAge(userDetails.getAge());
-            existingUser.setWeight(userDetails.getWeight());
-            existingUser.setHeight(userDetails.getHeight());
-            existingUser.setFitnessGoal(userDetails.getFitnessGoal());
-            existingUser.setBmr(userDetails.getBmr());
-
-            // Save updated user
-            return Optional.of(userRepository.save(existingUser));
-        }
-        return Optional.empty();
+        // Only the profile fields change, so history appended meanwhile isn't overwritten
+        Update update = new Update()
+                .set("age", userDetails.getAge())
+                .set("weight", userDetails.getWeight())
+                .set("height", userDetails.getHeight())
+                .set("fitnessGoal", userDetails.getFitnessGoal())
+                .set("bmr", userDetails.getBmr());
+        return findIdByName(name)
+                .map(id -> mongoTemplate.findAndModify(Query.query(Criteria.where("id").is(id)), update,
+                        FindAndModifyOptions.options().returnNew(true), User.class))
+                .map(user -> {
+                    historySearch.invalidate(user.getId());
+                    return track(user);
+                });
     }
 
     public boolean deleteUser(String name) {
-        Optional<User> userOptional = userRepository.findById(name);
+        Optional<User> userOptional = findByName(name);
         if (userOptional.isPresent()) {
-            userRepository.deleteById(name);
+            userRepository.deleteById(userOptional.get().getId());
+            historySearch.invalidate(userOptional.get().getId());
+            readRouter.markWritten(name);
+            readRouter.markWritten(userOptional.get().getId());
             return true;
         }
         return false;
@@ -69,12 +174,12 @@ public class UserService {
 
     // Conversation-related operations
     public List<User.ConversationEntry> getConversationHistory(String name) {
-        Optional<User> userOptional = userRepository.findById(name);
+        Optional<User> userOptional = findForRead(ReadOperation.HISTORY, "name", name);
         return userOptional.map(User::getConversationHistory).orElse(null);
     }
 
     public List<User.ConversationEntry> getConversationHistoryBetweenDates(String name, ZonedDateTime startDate, ZonedDateTime endDate) {
-        Optional<User> userOptional = userRepository.findById(name);
+        Optional<User> userOptional = findForRead(ReadOperation.HISTORY_RANGE, "name", name);
         if (userOptional.isPresent()) {
             return userOptional.get().getConversationHistory().stream()
                     .filter(entry -> !entry.getTimestamp().isBefore(startDate) && !entry.getTimestamp().isAfter(endDate))
@@ -84,56 +189,35 @@ public class UserService {
     }
 
     public User.ConversationEntry addConversationEntry(String name, User.ConversationEntry conversationEntry) {
-        Optional<User> userOptional = userRepository.findById(name);
-        if (userOptional.isPresent()) {
-            User user = userOptional.get();
-            user.addConversationEntry(conversationEntry);
-            userRepository.save(user);
-            return conversationEntry;
+        User user = appendByName(name, HistoryKind.CONVERSATION, conversationEntry);
+        if (user == null) {
+            return null;
         }
-        return null;
+        return last(user.getConversationHistory());
     }
 
     // Activity and Calorie related operations
     public User addHistoricalActivity(String name, User.HistoricalActivity activity) {
-        Optional<User> userOptional = userRepository.findById(name);
-        if (userOptional.isPresent()) {
-            User user = userOptional.get();
-            user.addHistoricalActivity(activity);
-            return userRepository.save(user);
-        }
-        return null;
+        return appendByName(name, HistoryKind.ACTIVITY, activity);
     }
 
     public User addHistoricalCalories(String name, User.HistoricalCalories calories) {
-        Optional<User> userOptional = userRepository.findById(name);
-        if (userOptional.isPresent()) {
-            User user = userOptional.get();
-            user.addHistoricalCalories(calories);
-            return userRepository.save(user);
-        }
-        return null;
+        return appendByName(name, HistoryKind.CALORIES, calories);
     }
 
     public User addHistoricalMeal(String name, User.HistoricalMeal meal) {
-        Optional<User> userOptional = userRepository.findById(name);
-        if (userOptional.isPresent()) {
-            User user = userOptional.get();
-            user.addHistoricalMeal(meal);
-            return userRepository.save(user);
-        }
-        return null;
+        return appendByName(name, HistoryKind.MEAL, meal);
     }
 
     public List<User.ConversationEntry> getConversationHistoryById(long id) {
-        return userRepository.findById(id)
+        return findForRead(ReadOperation.HISTORY, "id", id)
                 .map(User::getConversationHistory)
                 .orElse(null);
     }
 
     public List<User.ConversationEntry> getConversationHistoryBetweenDatesById(
             long id, ZonedDateTime startDate, ZonedDateTime endDate) {
-        return userRepository.findById(id)
+        return findForRead(ReadOperation.HISTORY_RANGE, "id", id)
                 .map(user -> user.getConversationHistory().stream()
                         .filter(entry -> {
                             ZonedDateTime timestamp = entry.getTimestamp();
@@ -144,48 +228,66 @@ public class UserService {
     }
 
     public User.ConversationEntry addConversationEntryById(long id, User.ConversationEntry conversationEntry) {
-        return userRepository.findById(id)
-                .map(user -> {
-                    // Set current timestamp if not provided
-                    if (conversationEntry.getTimestamp() == null) {
-                        conversationEntry.setTimestamp(ZonedDateTime.now());
-                    }
-
-                    user.getConversationHistory().add(conversationEntry);
-                    userRepository.save(user);
-                    return conversationEntry;
-                })
-                .orElse(null);
+        // Set current timestamp if not provided
+        if (conversationEntry.getTimestamp() == null) {
+            conversationEntry.setTimestamp(ZonedDateTime.now());
+        }
+        User user = appendById(id, HistoryKind.CONVERSATION, conversationEntry);
+        if (user == null) {
+            return null;
+        }
+        return last(user.getConversationHistory());
     }
 
     public User addHistoricalActivityById(long id, User.HistoricalActivity activity) {
-        return userRepository.findById(id)
-                .map(user -> {
-                    user.getHistoricalActivities().add(activity);
-                    return userRepository.save(user);
-                })
-                .orElse(null);
+        return appendById(id, HistoryKind.ACTIVITY, activity);
     }
 
     public User addHistoricalCaloriesById(long id, User.HistoricalCalories calories) {
-        return userRepository.findById(id)
-                .map(user -> {
-                    user.getHistoricalCalories().add(calories);
-                    return userRepository.save(user);
-                })
-                .orElse(null);
+        return appendById(id, HistoryKind.CALORIES, calories);
     }
 
     public User addHistoricalMealById(long id, User.HistoricalMeal meal) {
-        return userRepository.findById(id)
-                .map(user -> {
-                    user.getHistoricalMeals().add(meal);
-                    return userRepository.save(user);
-                })
-                .orElse(null);
+        return appendById(id, HistoryKind.MEAL, meal);
     }
+
+    /**
+     * Entries appended to any history list of user {@code id} after sequence
+     * number {@code since}. The filtering runs in MongoDB, so only the new entries
+     * leave the database. {@code since} 0 returns the full history, including
+     * entries that predate sequence numbers.
+     */
+    public Optional<HistoryChanges> getChangesSince(long id, long since) {
+        userRekey.ensureMigrated("id", id);
+        ProjectionOperation project = Aggregation.project("syncSeq");
+        for (HistoryKind kind : HistoryKind.values()) {
+            project = since == 0
+                    ? project.andInclude(kind.field)
+                    : project.and(ArrayOperators.Filter.filter(kind.field).as("entry")
+                            .by(ComparisonOperators.valueOf("entry.seq").greaterThanValue(since)))
+                            .as(kind.field);
+        }
+        Aggregation aggregation = Aggregation.newAggregation(
+                        Aggregation.match(Criteria.where("id").is(id)),
+                        project)
+                .withOptions(AggregationOptions.builder()
+                        .readPreference(readRouter.preferenceFor(ReadOperation.HISTORY, id))
+                        .build());
+        User changed = mongoTemplate.aggregate(aggregation, User.class, User.class).getUniqueMappedResult();
+        return Optional.ofNullable(changed)
+                .map(user -> new HistoryChanges(since, user.getSyncSeq(),
+                        orEmpty(user.getConversationHistory()),
+                        orEmpty(user.getHistoricalActivities()),
+                        orEmpty(user.getHistoricalCalories()),
+                        orEmpty(user.getHistoricalMeals())));
+    }
+
+    private static <T> List<T> orEmpty(List<T> list) {
+        return list != null ? list : new ArrayList<>();
+    }
+
     public List<User.HistoricalMeal> getUserMealsById(long id) {
-        return userRepository.findById(id)
+        return findForRead(ReadOperation.HISTORY, "id", id)
                 .map(User::getHistoricalMeals)
                 .orElse(null);
     }
@@ -0,0 +1,293 @@
+package us.salus.userservice.services;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOptions;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import us.salus.userservice.models.User;
+import us.salus.userservice.services.DurableAppendService.HistoryKind;
+
+/**
+ * Streams a user and their history to and from NDJSON archives.
+ *
+ * An archive is one JSON record per line: first {@code {"kind":"USER"}} with the
+ * profile, then one record per history entry, kind being a {@link HistoryKind}.
+ * Export reads each history list through an {@code $unwind} cursor, so only one
+ * cursor batch of entries is in memory at a time. Import pushes entries in
+ * batches of {@code salus.transfer.batch-size}. Heap use therefore depends on
+ * the batch size, not on how long the history is. Like every other write, the
+ * import assigns sequence numbers itself: the archive's are ignored and the
+ * entries are numbered in archive order.
+ */
+@Service
+public class UserTransferService {
+
+    public static final String USER = "USER";
+
+    /** One archive line. */
+    record ArchiveRecord(String kind, JsonNode data) {
+    }
+
+    private final MongoTemplate mongoTemplate;
+    private final UserRekeyService userRekey;
+    private final HistorySearchService historySearch;
+    private final ObjectMapper objectMapper;
+    private final int batchSize;
+    private final int maxLineLength;
+
+    @Autowired
+    public UserTransferService(MongoTemplate mongoTemplate,
+                               UserRekeyService userRekey,
+                               HistorySearchService historySearch,
+                               ObjectMapper objectMapper,
+                               @Value("${salus.transfer.batch-size:1000}") int batchSize,
+                               @Value("${salus.transfer.max-line-length:1048576}") int maxLineLength) {
+        this.mongoTemplate = mongoTemplate;
+        this.userRekey = userRekey;
+        this.historySearch = historySearch;
+        this.objectMapper = objectMapper;
+        this.batchSize = batchSize;
+        this.maxLineLength = maxLineLength;
+    }
+
+    /** The user without any history, or empty if there is no such user. */
+    public Optional<User> findProfile(String field, Object value) {
+        userRekey.ensureMigrated(field, value);
+        Query query = Query.query(Criteria.where(field).is(value)).with(Sort.by("id"));
+        for (HistoryKind kind : HistoryKind.values()) {
+            query.fields().exclude(kind.field);
+        }
+        return Optional.ofNullable(mongoTemplate.findOne(query, User.class));
+    }
+
+    /** Writes the archive of {@code profile} and its history. */
+    public void export(User profile, OutputStream out, boolean gzip) throws IOException {
+        OutputStream target = gzip ? new GZIPOutputStream(out, 64 * 1024) : out;
+        JsonGenerator generator = objectMapper.getFactory().createGenerator(target)
+                .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        // Records are separated by the newline writeRecord appends, not by Jackson's default space
+        generator.setRootValueSeparator(null);
+        writeRecord(generator, USER, profile);
+        for (HistoryKind kind : HistoryKind.values()) {
+            Aggregation unwind = Aggregation.newAggregation(
+                            Aggregation.match(Criteria.where("id").is(profile.getId())),
+                            Aggregation.project(kind.field).andExclude("_id"),
+                            Aggregation.unwind(kind.field))
+                    .withOptions(AggregationOptions.builder().cursorBatchSize(batchSize).build());
+            try (Stream<Document> entries = mongoTemplate.aggregateStream(unwind, User.class, Document.class)) {
+                for (Document entry : (Iterable<Document>) entries::iterator) {
+                    writeRecord(generator, kind.name(),
+                            mongoTemplate.getConverter().read(kind.type, entry.get(kind.field, Document.class)));
+                }
+            }
+        }
+        generator.close();
+        if (target instanceof GZIPOutputStream compressed) {
+            compressed.finish();
+        }
+        target.flush();
+    }
+
+    /**
+     * Creates the user described by an archive and returns their id. Fails with
+     * {@link org.springframework.dao.DuplicateKeyException} if a user with that id
+     * already exists and with {@link IllegalArgumentException} on a malformed archive,
+     * including a corrupt or truncated gzip body; a failed import leaves nothing behind.
+     */
+    public long importArchive(InputStream in, boolean gzip) throws IOException {
+        if (!gzip) {
+            return importRecords(in);
+        }
+        try {
+            return importRecords(new GZIPInputStream(in, 64 * 1024));
+        } catch (ZipException | EOFException e) {
+            throw new IllegalArgumentException("Body is not valid gzip: " + e.getMessage(), e);
+        }
+    }
+
+    private long importRecords(InputStream in) throws IOException {
+        LineReader reader = new LineReader(new InputStreamReader(in, StandardCharsets.UTF_8), maxLineLength);
+        ArchiveRecord header = readRecord(reader);
+        if (header == null || !USER.equals(header.kind())) {
+            throw new IllegalArgumentException("Archive must start with a " + USER + " record");
+        }
+        User profile = convert(header.data(), User.class);
+        if (profile.getId() <= 0) {
+            throw new IllegalArgumentException("Archive user must have a positive id");
+        }
+        // History only comes from the entry records that follow
+        profile.setConversationHistory(new ArrayList<>());
+        profile.setHistoricalActivities(new ArrayList<>());
+        profile.setHistoricalCalories(new ArrayList<>());
+        profile.setHistoricalMeals(new ArrayList<>());
+        // A user still in the legacy collection must be moved first so the insert sees it
+        userRekey.ensureMigrated("id", profile.getId());
+        mongoTemplate.insert(profile);
+
+        Query query = Query.query(Criteria.where("id").is(profile.getId()));
+        try {
+            List<ArchiveRecord> batch = new ArrayList<>(batchSize);
+            long seq = 0;
+            ArchiveRecord record;
+            while ((record = readRecord(reader)) != null) {
+                batch.add(record);
+                if (batch.size() == batchSize) {
+                    seq = pushBatch(query, batch, seq);
+                    batch.clear();
+                }
+            }
+            pushBatch(query, batch, seq);
+        } catch (IOException | RuntimeException e) {
+            mongoTemplate.remove(query, User.class);
+            throw e;
+        } finally {
+            // Any index built for an earlier user with this id is out of date
+            historySearch.invalidate(profile.getId());
+        }
+        return profile.getId();
+    }
+
+    /** Pushes one batch, numbering its entries after {@code seq}, and returns the last number used. */
+    private long pushBatch(Query query, List<ArchiveRecord> batch, long seq) {
+        if (batch.isEmpty()) {
+            return seq;
+        }
+        // One update per batch, with one $push per history list present in it
+        List<List<Object>> byKind = new ArrayList<>();
+        for (HistoryKind kind : HistoryKind.values()) {
+            byKind.add(new ArrayList<>());
+        }
+        for (ArchiveRecord record : batch) {
+            HistoryKind kind = kindOf(record);
+            Document entry = DurableAppendService.toDocument(mongoTemplate.getConverter(), convert(record.data(), kind.type));
+            entry.put("seq", ++seq);
+            byKind.get(kind.ordinal()).add(entry);
+        }
+        Update update = new Update().max("syncSeq", seq);
+        for (HistoryKind kind : HistoryKind.values()) {
+            List<Object> entries = byKind.get(kind.ordinal());
+            if (!entries.isEmpty()) {
+                update.push(kind.field).each(entries.toArray());
+            }
+        }
+        mongoTemplate.updateFirst(query, update, User.class);
+        return seq;
+    }
+
+    private static HistoryKind kindOf(ArchiveRecord record) {
+        try {
+            return HistoryKind.valueOf(record.kind());
+        } catch (IllegalArgumentException | NullPointerException e) {
+            throw new IllegalArgumentException("Unknown archive record kind: " + record.kind());
+        }
+    }
+
+    private <T> T convert(JsonNode data, Class<T> type) {
+        try {
+            return objectMapper.treeToValue(data, type);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Malformed archive record: " + e.getOriginalMessage());
+        }
+    }
+
+    private static void writeRecord(JsonGenerator generator, String kind, Object data) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("kind", kind);
+        generator.writeObjectField("data", data);
+        generator.writeEndObject();
+        generator.writeRaw('\n');
+    }
+
+    private ArchiveRecord readRecord(LineReader reader) throws IOException {
+        String line;
+        do {
+            line = reader.readLine();
+            if (line == null) {
+                return null;
+            }
+        } while (line.isBlank());
+        try {
+            return objectMapper.readValue(line, ArchiveRecord.class);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Malformed archive record: " + e.getOriginalMessage());
+        }
+    }
+
+    /**
+     * Reads lines like {@link java.io.BufferedReader#readLine()}, but fails with
+     * {@link IllegalArgumentException} on a line longer than {@code maxLength}
+     * instead of buffering it whole.
+     */
+    static final class LineReader {
+        private final Reader in;
+        private final int maxLength;
+        private final char[] buffer = new char[8192];
+        private final StringBuilder line = new StringBuilder();
+        private int position;
+        private int limit;
+
+        LineReader(Reader in, int maxLength) {
+            this.in = in;
+            this.maxLength = maxLength;
+        }
+
+        /** The next line without its terminator, or null at the end of the input. */
+        String readLine() throws IOException {
+            line.setLength(0);
+            while (true) {
+                if (position == limit) {
+                    int read = in.read(buffer, 0, buffer.length);
+                    position = 0;
+                    limit = Math.max(read, 0);
+                    if (read < 0) {
+                        return line.length() > 0 ? line.toString() : null;
+                    }
+                }
+                int start = position;
+                while (position < limit && buffer[position] != '\n') {
+                    position++;
+                }
+                if (line.length() + position - start > maxLength) {
+                    throw new IllegalArgumentException("Archive line longer than " + maxLength + " characters");
+                }
+                line.append(buffer, start, position - start);
+                if (position < limit) {
+                    position++;
+                    int end = line.length();
+                    if (end > 0 && line.charAt(end - 1) == '\r') {
+                        line.setLength(end - 1);
+                    }
+                    return line.toString();
+                }
+            }
+        }
+    }
+}
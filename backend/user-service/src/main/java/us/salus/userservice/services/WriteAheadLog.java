@@ -0,0 +1,240 @@
+package us.salus.userservice.services;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of opaque records in fixed-size memory-mapped segment files.
+ *
+ * Each record is {@code [int length][int crc32c][long seq][payload]}, where the
+ * checksum covers the sequence number and the payload. Segments are created
+ * zero-filled, so a zero length marks the end of the written part, and a bad
+ * checksum marks a torn write from a crash. Both end replay of that segment.
+ * Segments are named after the first sequence number they hold, and a
+ * checkpoint file records how far the log has been applied so fully applied
+ * segments can be deleted.
+ *
+ * Sequence numbers are only comparable within one log. {@link #getLogId()}
+ * names the log; it is created with the directory and survives restarts, so
+ * a node that comes back with an empty directory gets a new id rather than
+ * reusing numbers another incarnation already handed out.
+ *
+ * Appends are serialized by the caller; {@link #sync(long)} may be called
+ * concurrently and lets one msync cover every append made before it.
+ */
+public class WriteAheadLog implements AutoCloseable {
+
+    public record Record(long seq, byte[] payload) {
+    }
+
+    static final int HEADER_BYTES = 16;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".wal";
+    private static final String CHECKPOINT = "checkpoint";
+    private static final String LOG_ID = "log-id";
+
+    private final Path dir;
+    private final int segmentSize;
+    private final String logId;
+    private final Object syncLock = new Object();
+
+    private volatile MappedByteBuffer active;
+    private long nextSeq;
+    private volatile long appendedThrough;
+    private long syncedThrough;
+
+    public WriteAheadLog(Path dir, int segmentSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(dir);
+        this.logId = readOrCreateLogId();
+        long last = Math.max(readCheckpoint(), lastSeqOnDisk());
+        this.nextSeq = last + 1;
+        this.appendedThrough = last;
+        this.syncedThrough = last;
+    }
+
+    public String getLogId() {
+        return logId;
+    }
+
+    /**
+     * Writes one record and returns its sequence number. The record is in the
+     * page cache when this returns; call {@link #sync(long)} to make it survive
+     * a machine crash as well as a process crash.
+     */
+    public long append(byte[] payload) throws IOException {
+        int size = HEADER_BYTES + payload.length;
+        if (size > segmentSize) {
+            throw new IllegalArgumentException("Record of " + payload.length + " bytes exceeds the segment size");
+        }
+        if (active == null || active.remaining() < size) {
+            roll();
+        }
+        long seq = nextSeq++;
+        CRC32C crc = new CRC32C();
+        crc.update(longBytes(seq));
+        crc.update(payload);
+
+        int start = active.position();
+        // Write the length last so a concurrent crash never exposes a half-written record as complete
+        active.position(start + 4);
+        active.putInt((int) crc.getValue());
+        active.putLong(seq);
+        active.put(payload);
+        active.putInt(start, payload.length);
+        appendedThrough = seq;
+        return seq;
+    }
+
+    /** Forces every record up to at least {@code seq} to disk. */
+    public void sync(long seq) {
+        synchronized (syncLock) {
+            if (syncedThrough >= seq) {
+                return;
+            }
+            long target = appendedThrough;
+            MappedByteBuffer buffer = active;
+            if (buffer != null) {
+                buffer.force();
+            }
+            syncedThrough = target;
+        }
+    }
+
+    /** Every intact record with a sequence number above the checkpoint, in order. */
+    public List<Record> replay() throws IOException {
+        long checkpoint = readCheckpoint();
+        List<Record> records = new ArrayList<>();
+        for (Path segment : segments()) {
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                for (Record record : readSegment(buffer)) {
+                    if (record.seq() > checkpoint) {
+                        records.add(record);
+                    }
+                }
+            }
+        }
+        return records;
+    }
+
+    /** Records that everything through {@code seq} has been applied and deletes segments no longer needed. */
+    public void checkpoint(long seq) throws IOException {
+        Path tmp = dir.resolve(CHECKPOINT + ".tmp");
+        Files.writeString(tmp, Long.toString(seq));
+        Files.move(tmp, dir.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // A segment is obsolete once the segment after it starts at or below seq + 1
+        List<Path> segments = segments();
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            if (firstSeq(segments.get(i + 1)) <= seq + 1) {
+                Files.deleteIfExists(segments.get(i));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        sync(appendedThrough);
+        active = null;
+    }
+
+    private void roll() throws IOException {
+        if (active != null) {
+            active.force();
+        }
+        Path segment = dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, nextSeq, SEGMENT_SUFFIX));
+        // A leftover segment with this name can only hold torn records, since nextSeq was never acknowledged
+        Files.deleteIfExists(segment);
+        try (FileChannel channel = FileChannel.open(segment,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            active = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    private static List<Record> readSegment(MappedByteBuffer buffer) {
+        List<Record> records = new ArrayList<>();
+        while (buffer.remaining() >= HEADER_BYTES) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            if (length <= 0 || length > buffer.limit() - start - HEADER_BYTES) {
+                break;
+            }
+            int storedCrc = buffer.getInt();
+            long seq = buffer.getLong();
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+
+            CRC32C crc = new CRC32C();
+            crc.update(longBytes(seq));
+            crc.update(payload);
+            if ((int) crc.getValue() != storedCrc) {
+                break;
+            }
+            records.add(new Record(seq, payload));
+        }
+        return records;
+    }
+
+    private long lastSeqOnDisk() throws IOException {
+        List<Path> segments = segments();
+        if (segments.isEmpty()) {
+            return 0;
+        }
+        Path last = segments.get(segments.size() - 1);
+        try (FileChannel channel = FileChannel.open(last, StandardOpenOption.READ)) {
+            List<Record> records = readSegment(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            return records.isEmpty() ? firstSeq(last) - 1 : records.get(records.size() - 1).seq();
+        }
+    }
+
+    private String readOrCreateLogId() throws IOException {
+        Path file = dir.resolve(LOG_ID);
+        if (!Files.exists(file)) {
+            // Hex only, so the id can be used as a field name in MongoDB
+            Path tmp = dir.resolve(LOG_ID + ".tmp");
+            Files.writeString(tmp, UUID.randomUUID().toString().replace("-", ""));
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return Files.readString(file).trim();
+    }
+
+    private long readCheckpoint() throws IOException {
+        Path checkpoint = dir.resolve(CHECKPOINT);
+        return Files.exists(checkpoint) ? Long.parseLong(Files.readString(checkpoint).trim()) : 0;
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().startsWith(SEGMENT_PREFIX))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static long firstSeq(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static byte[] longBytes(long value) {
+        byte[] bytes = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            bytes[i] = (byte) value;
+            value >>>= 8;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,50 @@
+package us.salus.userservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import us.salus.userservice.services.ConcurrencyLimiter;
+import us.salus.userservice.services.ConcurrencyLimiter.Priority;
+
+class ConcurrencyLimitFilterTests {
+
+    @Test
+    void classifiesRoutes() {
+        assertEquals(Priority.CRITICAL, ConcurrencyLimitFilter.classify("GET", "/auth/callback"));
+        assertEquals(Priority.CRITICAL, ConcurrencyLimitFilter.classify("GET", "/api/users/me"));
+        assertEquals(Priority.BULK, ConcurrencyLimitFilter.classify("GET", "/api/users"));
+        assertEquals(Priority.BULK, ConcurrencyLimitFilter.classify("GET", "/api/users/id/7/conversations"));
+        assertEquals(Priority.BULK, ConcurrencyLimitFilter.classify("GET", "/api/users/ada/meals"));
+        assertEquals(Priority.BULK, ConcurrencyLimitFilter.classify("GET", "/api/users/ada"));
+        assertEquals(Priority.BULK, ConcurrencyLimitFilter.classify("GET", "/api/users/id/7"));
+        assertEquals(Priority.NORMAL, ConcurrencyLimitFilter.classify("PUT", "/api/users/ada"));
+        assertEquals(Priority.NORMAL, ConcurrencyLimitFilter.classify("GET", "/api/users/id/7/changes"));
+        assertEquals(Priority.NORMAL, ConcurrencyLimitFilter.classify("POST", "/api/users/id/7/conversations"));
+    }
+
+    @Test
+    void shedsOverLimitWithServiceUnavailable() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(true, 2, 2, 2);
+        ConcurrencyLimitFilter filter = new ConcurrencyLimitFilter(limiter);
+        limiter.tryAcquire(Priority.CRITICAL);
+
+        MockHttpServletResponse shed = new MockHttpServletResponse();
+        filter.doFilter(new MockHttpServletRequest("GET", "/api/users"), shed, new MockFilterChain());
+        assertEquals(503, shed.getStatus());
+        assertEquals("1", shed.getHeader("Retry-After"));
+
+        MockHttpServletResponse admitted = new MockHttpServletResponse();
+        filter.doFilter(new MockHttpServletRequest("GET", "/api/users/me"), admitted, new MockFilterChain());
+        assertEquals(200, admitted.getStatus());
+        assertEquals(1, limiter.getInFlight());
+
+        MockHttpServletResponse health = new MockHttpServletResponse();
+        limiter.tryAcquire(Priority.CRITICAL);
+        filter.doFilter(new MockHttpServletRequest("GET", "/api/health"), health, new MockFilterChain());
+        assertEquals(200, health.getStatus());
+    }
+}
@@ -0,0 +1,60 @@
+package us.salus.userservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.servlet.HandlerMapping;
+
+import us.salus.userservice.services.FlightRecorderService;
+import us.salus.userservice.services.RequestProfile;
+
+class RequestProfilingFilterTests {
+
+    private final FlightRecorderService flightRecorder = mock(FlightRecorderService.class);
+    private final RequestProfilingFilter filter = new RequestProfilingFilter(flightRecorder);
+
+    RequestProfilingFilterTests() {
+        when(flightRecorder.isEnabled()).thenReturn(true);
+    }
+
+    @Test
+    void profilesRouteUserAndBytes() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(new MockHttpServletRequest("GET", "/api/users/id/7/meals"), response, (req, res) -> {
+            // What Spring MVC's handler mapping records for the matched route
+            req.setAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE, "/api/users/id/{id}/meals");
+            req.setAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE, Map.of("id", "7"));
+            res.getOutputStream().write(new byte[42]);
+            res.getWriter().write("abc");
+        });
+
+        ArgumentCaptor<RequestProfile> profile = ArgumentCaptor.forClass(RequestProfile.class);
+        verify(flightRecorder).onRequestFinished(profile.capture());
+        assertEquals("GET", profile.getValue().getMethod());
+        assertEquals("/api/users/id/{id}/meals", profile.getValue().getRoute());
+        assertEquals("7", profile.getValue().getUser());
+        assertEquals(200, profile.getValue().getStatus());
+        assertEquals(45, profile.getValue().getBytesWritten());
+        assertEquals(45, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    void skipsOpsAndHealthRoutes() throws Exception {
+        filter.doFilter(new MockHttpServletRequest("GET", "/api/ops/jfr"), new MockHttpServletResponse(),
+                new MockFilterChain());
+        filter.doFilter(new MockHttpServletRequest("GET", "/.well-known/jwks.json"), new MockHttpServletResponse(),
+                new MockFilterChain());
+        verify(flightRecorder, never()).onRequestFinished(any());
+    }
+}
@@ -0,0 +1,42 @@
+package us.salus.userservice;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+class StartupTimeTests {
+
+    // Generous enough for a cold CI runner; tighten with -Dstartup.budget.ms
+    private static final long BUDGET_MS = Long.getLong("startup.budget.ms", 20_000);
+
+    @Test
+    void firstRequestWithinBudget() throws Exception {
+        long start = System.nanoTime();
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(UserServiceApplication.class)
+                .profiles("prod")
+                // No Mongo is needed to serve /api/health; fail background lookups fast instead of holding up close()
+                .run("--server.port=0",
+                        "--spring.data.mongodb.uri=mongodb://localhost:27017/test?serverSelectionTimeoutMS=1000")) {
+            int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+
+            HttpResponse<String> response = HttpClient.newHttpClient().send(
+                    HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/api/health")).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+            assertEquals(200, response.statusCode());
+            assertTrue(elapsedMs < BUDGET_MS,
+                    "time to first request was " + elapsedMs + " ms, budget is " + BUDGET_MS + " ms");
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+package us.salus.userservice.models;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.DoubleSupplier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+/**
+ * Heap and latency of {@link HistoryColumns} against the entry object lists.
+ * Not part of the regular build; run with
+ * {@code mvn test -Dtest=HistoryColumnsBenchmark -Dbenchmark=true}.
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class HistoryColumnsBenchmark {
+
+    private static final int ENTRIES = Integer.getInteger("benchmark.entries", 1_000_000);
+    private static final int WARMUP = 20;
+    private static final int RUNS = 50;
+
+    private static volatile Object retained;
+    private static volatile double sink;
+
+    @Test
+    void columnsAreSmallerAndFaster() {
+        ZonedDateTime start = ZonedDateTime.of(2020, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+        ZonedDateTime end = start.plusMinutes(ENTRIES);
+
+        long before = usedHeap();
+        List<User.HistoricalCalories> objects = calories(start);
+        retained = objects;
+        long objectBytes = usedHeap() - before;
+
+        before = usedHeap();
+        HistoryColumns columns = HistoryColumns.ofCalories(objects);
+        retained = columns;
+        long columnBytes = usedHeap() - before;
+
+        // The most recent tenth, like a monthly window over a year of history
+        ZonedDateTime from = end.minusMinutes(ENTRIES / 10);
+        double objectMillis = medianMillis(() -> objects.stream()
+                .filter(e -> !e.getDate().isBefore(from) && !e.getDate().isAfter(end))
+                .mapToDouble(User.HistoricalCalories::getCaloriesBurned)
+                .sum());
+        double columnMillis = medianMillis(() -> columns.range(from, end).sum(HistoryColumns.CALORIES_BURNED));
+        double objectFullMillis = medianMillis(() -> {
+            double sum = 0;
+            for (User.HistoricalCalories e : objects) {
+                sum += e.getCaloriesBurned();
+            }
+            return sum;
+        });
+        double columnFullMillis = medianMillis(() -> columns.sum(HistoryColumns.CALORIES_BURNED));
+
+        System.out.printf("%,d calorie entries%n", ENTRIES);
+        System.out.printf("heap:           objects %,12d B (%5.1f B/entry)   columns %,12d B (%5.1f B/entry)%n",
+                objectBytes, (double) objectBytes / ENTRIES, columnBytes, (double) columnBytes / ENTRIES);
+        System.out.printf("10%% range sum:  objects %8.3f ms   columns %8.3f ms%n", objectMillis, columnMillis);
+        System.out.printf("full sum:       objects %8.3f ms   columns %8.3f ms%n", objectFullMillis, columnFullMillis);
+
+        assertTrue(columnBytes * 4 < objectBytes, "columns should be at least 4x smaller");
+        assertTrue(columnMillis < objectMillis, "range sums should be faster on columns");
+        assertTrue(columnFullMillis < objectFullMillis, "full sums should be faster on columns");
+    }
+
+    private static List<User.HistoricalCalories> calories(ZonedDateTime start) {
+        Random random = new Random(3);
+        List<User.HistoricalCalories> entries = new ArrayList<>(ENTRIES);
+        for (int i = 0; i < ENTRIES; i++) {
+            entries.add(new User.HistoricalCalories(start.plusMinutes(i), random.nextInt(1000), random.nextInt(3000), i));
+        }
+        return entries;
+    }
+
+    private static double medianMillis(DoubleSupplier work) {
+        for (int i = 0; i < WARMUP; i++) {
+            sink += work.getAsDouble();
+        }
+        double[] runs = new double[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            long t0 = System.nanoTime();
+            sink += work.getAsDouble();
+            runs[i] = (System.nanoTime() - t0) / 1e6;
+        }
+        Arrays.sort(runs);
+        return runs[RUNS / 2];
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,64 @@
+package us.salus.userservice.models;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class HistoryColumnsTests {
+
+    private static final ZonedDateTime START = ZonedDateTime.of(2025, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+
+    private static User.HistoricalCalories calories(int day, float burned, float consumed) {
+        return new User.HistoricalCalories(day < 0 ? null : START.plusDays(day), burned, consumed, 0);
+    }
+
+    @Test
+    void sortsByTimeAndSlicesInclusively() {
+        HistoryColumns columns = HistoryColumns.ofCalories(List.of(
+                calories(3, 300, 30), calories(1, 100, 10), calories(-1, 999, 99), calories(2, 200, 20)));
+
+        assertArrayEquals(new long[] { Long.MIN_VALUE, millis(1), millis(2), millis(3) }, columns.times());
+        assertArrayEquals(new float[] { 999, 100, 200, 300 }, columns.column(HistoryColumns.CALORIES_BURNED));
+
+        HistoryColumns middle = columns.range(START.plusDays(1), START.plusDays(2));
+        assertEquals(2, middle.size());
+        assertEquals(300, middle.sum(HistoryColumns.CALORIES_BURNED));
+        assertEquals(30, middle.sum(HistoryColumns.CALORIES_CONSUMED));
+        // Undated entries only appear when the start is open
+        assertEquals(3, columns.range(START, null).size());
+        assertEquals(4, columns.range(null, null).size());
+        assertEquals(0, columns.range(START.plusDays(4), null).size());
+        assertEquals(1, middle.range(START.plusDays(2), START.plusDays(9)).size());
+    }
+
+    @Test
+    void sumMatchesObjectListOverRandomRanges() {
+        Random random = new Random(11);
+        List<User.HistoricalCalories> entries = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            entries.add(calories(random.nextInt(365), random.nextInt(1000), random.nextInt(3000)));
+        }
+        HistoryColumns columns = HistoryColumns.ofCalories(entries);
+
+        for (int i = 0; i < 100; i++) {
+            ZonedDateTime from = START.plusDays(random.nextInt(365));
+            ZonedDateTime to = from.plusDays(random.nextInt(60));
+            double expected = entries.stream()
+                    .filter(e -> !e.getDate().isBefore(from) && !e.getDate().isAfter(to))
+                    .mapToDouble(User.HistoricalCalories::getCaloriesBurned)
+                    .sum();
+            assertEquals(expected, columns.range(from, to).sum(HistoryColumns.CALORIES_BURNED), 1e-6);
+        }
+    }
+
+    private static long millis(int day) {
+        return START.plusDays(day).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,48 @@
+package us.salus.userservice.models;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class LeaderboardTests {
+
+    private static List<Long> ids(Leaderboard leaderboard) {
+        return leaderboard.getEntries().stream().map(Leaderboard.Entry::getUserId).toList();
+    }
+
+    @Test
+    void keepsTopEntriesHighestFirst() {
+        Leaderboard leaderboard = new Leaderboard(3);
+        leaderboard.offer(1, "a", 10);
+        leaderboard.offer(2, "b", 40);
+        leaderboard.offer(3, "c", 20);
+        leaderboard.offer(4, "d", 30);
+        leaderboard.offer(5, "e", 5);
+
+        assertEquals(List.of(2L, 4L, 3L), ids(leaderboard));
+    }
+
+    @Test
+    void mergeMatchesSingleLeaderboard() {
+        Leaderboard whole = new Leaderboard(4);
+        Leaderboard left = new Leaderboard(4);
+        Leaderboard right = new Leaderboard(4);
+        for (int i = 1; i <= 20; i++) {
+            double value = (i * 37) % 23;
+            whole.offer(i, "user" + i, value);
+            (i % 2 == 0 ? left : right).offer(i, "user" + i, value);
+        }
+        left.merge(right);
+
+        assertEquals(ids(whole), ids(left));
+    }
+
+    @Test
+    void rejectsEmptyCapacity() {
+        assertThrows(IllegalArgumentException.class, () -> new Leaderboard(0));
+        assertThrows(IllegalArgumentException.class, () -> new Leaderboard().setCapacity(-1));
+    }
+}
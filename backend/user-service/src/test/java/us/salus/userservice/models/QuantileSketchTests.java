@@ -0,0 +1,52 @@
+package us.salus.userservice.models;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class QuantileSketchTests {
+
+    @Test
+    void quantilesWithinRelativeAccuracy() {
+        Random random = new Random(7);
+        double[] values = new double[10_000];
+        QuantileSketch sketch = new QuantileSketch();
+        for (int i = 0; i < values.length; i++) {
+            // Weekly deficits: mostly positive, some surplus
+            values[i] = random.nextGaussian() * 2000 + 1500;
+            sketch.add(values[i]);
+        }
+        Arrays.sort(values);
+
+        for (double q : new double[] { 0.05, 0.25, 0.5, 0.75, 0.95, 0.99 }) {
+            double exact = values[(int) Math.ceil(q * values.length) - 1];
+            double tolerance = Math.max(Math.abs(exact) * QuantileSketch.RELATIVE_ACCURACY, QuantileSketch.MIN_INDEXABLE);
+            assertEquals(exact, sketch.quantile(q), tolerance * 1.01, "quantile " + q);
+        }
+        assertEquals(0.5, sketch.rank(sketch.quantile(0.5)), 0.01);
+    }
+
+    @Test
+    void mergeMatchesSingleSketch() {
+        Random random = new Random(11);
+        QuantileSketch whole = new QuantileSketch();
+        QuantileSketch left = new QuantileSketch();
+        QuantileSketch right = new QuantileSketch();
+        for (int i = 0; i < 5_000; i++) {
+            double value = random.nextGaussian() * 800;
+            whole.add(value);
+            (i % 2 == 0 ? left : right).add(value);
+        }
+        left.merge(right);
+
+        assertEquals(whole.getCount(), left.getCount());
+        for (double q = 0.01; q < 1; q += 0.01) {
+            assertEquals(whole.quantile(q), left.quantile(q), 0.0);
+        }
+        assertEquals(whole.rank(-250), left.rank(-250), 0.0);
+    }
+
+}
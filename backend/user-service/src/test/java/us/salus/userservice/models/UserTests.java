@@ -0,0 +1,26 @@
+package us.salus.userservice.models;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+class UserTests {
+
+    private final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+
+    @Test
+    void sequenceNumbersAreReadOnly() throws Exception {
+        User user = objectMapper.readValue("{\"name\":\"ada\",\"syncSeq\":42}", User.class);
+        assertEquals(0, user.getSyncSeq());
+        User.HistoricalMeal meal = objectMapper.readValue("{\"name\":\"Soup\",\"seq\":42}", User.HistoricalMeal.class);
+        assertEquals(0, meal.getSeq());
+
+        // Still sent to clients, who sync with them
+        meal.setSeq(3);
+        assertTrue(objectMapper.writeValueAsString(meal).contains("\"seq\":3"));
+    }
+}
@@ -0,0 +1,154 @@
+package us.salus.userservice.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyIterable;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.bson.Document;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.AggregationResults;
+import org.springframework.data.mongodb.core.aggregation.TypedAggregation;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import us.salus.userservice.models.AnalyticsSummary;
+import us.salus.userservice.models.AnalyticsSummary.Metric;
+import us.salus.userservice.models.AnalyticsSummary.Window;
+import us.salus.userservice.models.Leaderboard;
+import us.salus.userservice.repositories.AnalyticsSummaryRepository;
+import us.salus.userservice.models.User;
+
+class AnalyticsServiceTests {
+
+    private final MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+    private final AnalyticsSummaryRepository summaryRepository = mock(AnalyticsSummaryRepository.class);
+    private final UserRekeyService userRekey = mock(UserRekeyService.class);
+
+    private AnalyticsService analytics(int threads, int leaderboardSize) {
+        return new AnalyticsService(mongoTemplate, summaryRepository, new ReadRouter(List.of(), Duration.ofSeconds(90)),
+                userRekey, threads, leaderboardSize, Duration.ofHours(1), Duration.ofMinutes(30));
+    }
+
+    private static User user(long id, float burnedPerDay, int days) {
+        User user = new User(id, "user" + id, 30, 70, 175, "maintain");
+        ZonedDateTime today = ZonedDateTime.now(ZoneOffset.UTC).minusHours(1);
+        for (int i = 0; i < days; i++) {
+            user.getHistoricalCalories().add(new User.HistoricalCalories(today.minusDays(i), burnedPerDay, 2000, 0));
+        }
+        return user;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, AnalyticsSummary> savedSummaries() {
+        ArgumentCaptor<Iterable<AnalyticsSummary>> saved = ArgumentCaptor.forClass(Iterable.class);
+        verify(summaryRepository, timeout(5_000)).saveAll(saved.capture());
+        Map<String, AnalyticsSummary> summaries = new HashMap<>();
+        saved.getValue().forEach(summary -> summaries.put(summary.getKey(), summary));
+        return summaries;
+    }
+
+    @Test
+    void mergesPartialsFromAllWorkersAndLegacyUsers() {
+        List<User> users = new ArrayList<>();
+        for (long id = 1; id <= 1_000; id++) {
+            // Every user burns a different amount; the top three are the highest ids
+            users.add(user(id, 2000 + id, 40));
+        }
+        // User 1000 is still in the legacy collection and, mid-move, also in the new one
+        List<User> legacy = List.of(users.get(999), user(2_000, 100, 3));
+        when(userRekey.streamLegacyUsers(any(String[].class))).thenReturn(legacy.stream());
+        when(mongoTemplate.stream(any(Query.class), eq(User.class))).thenReturn(users.stream());
+
+        analytics(4, 3).refresh();
+        Map<String, AnalyticsSummary> summaries = savedSummaries();
+
+        AnalyticsSummary all = summaries.get(AnalyticsSummary.key(Window.ALL, Metric.CALORIES_BURNED));
+        assertEquals(1_001, all.getSketch().getCount());
+        assertEquals(List.of(1_000L, 999L, 998L),
+                all.getLeaderboard().getEntries().stream().map(Leaderboard.Entry::getUserId).toList());
+        assertEquals(40 * 3000.0, all.getLeaderboard().getEntries().get(0).getValue(), 1e-6);
+
+        AnalyticsSummary week = summaries.get(AnalyticsSummary.key(Window.WEEK, Metric.CALORIES_BURNED));
+        assertEquals(7 * 3000.0, week.getLeaderboard().getEntries().get(0).getValue(), 1e-6);
+        // Nobody has activities, so those summaries stay empty rather than filled with zeros
+        assertEquals(0, summaries.get(AnalyticsSummary.key(Window.ALL, Metric.ACTIVITY_COUNT)).getSketch().getCount());
+    }
+
+    @Test
+    void concurrentBackgroundRefreshesStartOnlyOne() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        when(userRekey.streamLegacyUsers(any(String[].class))).thenReturn(Stream.empty());
+        when(mongoTemplate.stream(any(Query.class), eq(User.class))).thenAnswer(invocation -> {
+            release.await();
+            return Stream.of(user(1, 2500, 3));
+        });
+        AnalyticsService analytics = analytics(2, 3);
+
+        assertTrue(analytics.refreshInBackground());
+        assertFalse(analytics.refreshInBackground());
+        release.countDown();
+        verify(summaryRepository, timeout(5_000)).saveAll(anyIterable());
+    }
+
+    @Test
+    void skipsRefreshWhileAnotherReplicaHoldsTheLease() {
+        doThrow(new DuplicateKeyException("held")).when(mongoTemplate)
+                .upsert(any(Query.class), any(Update.class), eq(AnalyticsService.LEASE_COLLECTION));
+        AnalyticsService analytics = analytics(1, 3);
+
+        analytics.refresh();
+        assertFalse(analytics.refreshInBackground());
+        verify(mongoTemplate, never()).stream(any(Query.class), eq(User.class));
+        verify(summaryRepository, never()).saveAll(anyIterable());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void percentileForUserUsesWindowTotalsFromTheDatabase() {
+        AnalyticsSummary summary = new AnalyticsSummary(Window.WEEK, Metric.CALORIE_DEFICIT, 3);
+        for (int deficit = -1000; deficit < 1000; deficit++) {
+            summary.getSketch().add(deficit);
+        }
+        when(summaryRepository.findById(AnalyticsSummary.key(Window.WEEK, Metric.CALORIE_DEFICIT)))
+                .thenReturn(Optional.of(summary));
+        Document totals = new Document("calorieEntries", 7).append("burned", 14_000.0).append("consumed", 14_000.0)
+                .append("activityEntries", 0).append("kilojoules", 0);
+        when(mongoTemplate.aggregate(any(TypedAggregation.class), eq(Document.class)))
+                .thenReturn(new AggregationResults<>(List.of(totals), new Document()));
+
+        double percentile = analytics(1, 3).getPercentileForUser(Window.WEEK, Metric.CALORIE_DEFICIT, 1)
+                .orElseThrow().getPercentile();
+        assertEquals(50, percentile, 1);
+        // No activities in the window, so there is nothing to rank
+        assertTrue(analytics(1, 3).getPercentileForUser(Window.WEEK, Metric.ACTIVITY_COUNT, 1).isEmpty());
+    }
+
+    @Test
+    void rejectsEmptyLeaderboard() {
+        assertThrows(IllegalArgumentException.class, () -> analytics(1, 0));
+    }
+}
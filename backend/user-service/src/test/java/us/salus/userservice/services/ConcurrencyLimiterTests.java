@@ -0,0 +1,75 @@
+package us.salus.userservice.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import us.salus.userservice.services.ConcurrencyLimiter.Priority;
+
+class ConcurrencyLimiterTests {
+
+    private static final long MILLIS = 1_000_000;
+
+    @Test
+    void lowerPrioritiesAreShedFirst() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(true, 10, 10, 10);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.tryAcquire(Priority.BULK));
+        }
+        assertFalse(limiter.tryAcquire(Priority.BULK));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.tryAcquire(Priority.NORMAL));
+        }
+        assertFalse(limiter.tryAcquire(Priority.NORMAL));
+        assertTrue(limiter.tryAcquire(Priority.CRITICAL));
+        assertTrue(limiter.tryAcquire(Priority.CRITICAL));
+        assertFalse(limiter.tryAcquire(Priority.CRITICAL));
+
+        limiter.release(10 * MILLIS);
+        assertTrue(limiter.tryAcquire(Priority.CRITICAL));
+    }
+
+    @Test
+    void limitGrowsWhileLatencyHoldsAndShrinksWhenItRises() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(true, 20, 4, 150);
+
+        // Saturated at steady latency: room to grow
+        for (int i = 0; i < 200; i++) {
+            saturate(limiter, 10 * MILLIS);
+        }
+        int grown = limiter.getLimit();
+        assertTrue(grown > 20, "limit stayed at " + grown);
+
+        // Queueing quadruples latency: back off
+        for (int i = 0; i < 50; i++) {
+            saturate(limiter, 40 * MILLIS);
+        }
+        assertTrue(limiter.getLimit() < grown / 2, "limit only fell to " + limiter.getLimit());
+    }
+
+    @Test
+    void idleTrafficDoesNotInflateLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(true, 20, 4, 150);
+        for (int i = 0; i < 500; i++) {
+            limiter.tryAcquire(Priority.NORMAL);
+            limiter.release(10 * MILLIS);
+        }
+        assertEquals(20, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    // Fills the limit and completes one request at full utilization, then frees the rest
+    private static void saturate(ConcurrencyLimiter limiter, long rttNanos) {
+        int acquired = 0;
+        while (limiter.tryAcquire(Priority.CRITICAL)) {
+            acquired++;
+        }
+        limiter.release(rttNanos);
+        for (int i = 1; i < acquired; i++) {
+            limiter.release(-1);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package us.salus.userservice.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+
+import us.salus.userservice.MongoConfig;
+import us.salus.userservice.models.User;
+import us.salus.userservice.services.DurableAppendService.HistoryKind;
+
+class DurableAppendServiceTests {
+
+    @TempDir
+    Path nodeA;
+
+    @TempDir
+    Path nodeB;
+
+    private final List<DurableAppendService> services = new ArrayList<>();
+    // What MongoDB holds for user 7: the per-log marks and the appended entries
+    private final Map<String, Long> walSeqByLog = new HashMap<>();
+    private final List<Document> activities = new ArrayList<>();
+    private final List<Document> deadLetters = new ArrayList<>();
+    // Activities with this many kilojoules are rejected by the simulated MongoDB, like an oversized document
+    private static final float POISON = -1;
+
+    @AfterEach
+    void stop() throws Exception {
+        for (DurableAppendService service : services) {
+            service.stop();
+        }
+    }
+
+    static MappingMongoConverter converter() {
+        MongoCustomConversions conversions = new MongoConfig().customConversions();
+        MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+        mappingContext.afterPropertiesSet();
+        MappingMongoConverter converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+        converter.setCustomConversions(conversions);
+        converter.afterPropertiesSet();
+        return converter;
+    }
+
+    /** A node with its own log, writing to the shared user document simulated above. */
+    private DurableAppendService node(Path dir) throws Exception {
+        MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+        when(mongoTemplate.getConverter()).thenReturn(converter());
+        when(mongoTemplate.bulkOps(eq(BulkOperations.BulkMode.ORDERED), eq(User.class))).thenAnswer(invocation -> {
+            BulkOperations bulk = mock(BulkOperations.class);
+            List<Query> queries = new ArrayList<>();
+            List<AggregationUpdate> pipelines = new ArrayList<>();
+            when(bulk.updateOne(any(Query.class), any(AggregationUpdate.class))).thenAnswer(update -> {
+                queries.add(update.getArgument(0));
+                pipelines.add(update.getArgument(1));
+                return bulk;
+            });
+            when(bulk.execute()).thenAnswer(execute -> {
+                for (int i = 0; i < queries.size(); i++) {
+                    if (((Number) appended(pipelines.get(i)).get("kilojoules")).floatValue() == POISON) {
+                        // Ordered: stops at the failed write
+                        throw new BulkOperationException("rejected", new MongoBulkWriteException(
+                                BulkWriteResult.unacknowledged(), List.of(new BulkWriteError(10334, "too large",
+                                        new org.bson.BsonDocument(), i)), null, new ServerAddress(), Set.of()));
+                    }
+                    applyGuarded(queries.get(i), pipelines.get(i));
+                }
+                return null;
+            });
+            return bulk;
+        });
+        when(mongoTemplate.insert(any(Document.class), eq(DurableAppendService.DEAD_LETTERS))).thenAnswer(insert -> {
+            synchronized (this) {
+                deadLetters.add(insert.getArgument(0));
+            }
+            return insert.getArgument(0);
+        });
+        DurableAppendService service = new DurableAppendService(mongoTemplate,
+                new ReadRouter(List.of(), Duration.ofSeconds(90)), mock(UserRekeyService.class), Jackson2ObjectMapperBuilder.json().build(),
+                true, dir, 1 << 16, 10, true);
+        service.start();
+        services.add(service);
+        return service;
+    }
+
+    /** Applies one flushed update the way MongoDB would: only if the log's mark is below the entry. */
+    private synchronized void applyGuarded(Query query, AggregationUpdate pipeline) {
+        Document criteria = query.getQueryObject();
+        // Entries are always applied by id, whichever route accepted them
+        assertEquals(7L, criteria.get("id"));
+        String markField = criteria.keySet().stream().filter(key -> key.startsWith("walSeqByLog.")).findFirst()
+                .orElseThrow();
+        long seq = criteria.get(markField, Document.class).get("$not", Document.class).getLong("$gte");
+        String logId = markField.substring("walSeqByLog.".length());
+        if (walSeqByLog.getOrDefault(logId, 0L) >= seq) {
+            return;
+        }
+        Document set = pipeline.toPipeline(Aggregation.DEFAULT_CONTEXT).get(0).get("$set", Document.class);
+        assertEquals(seq, set.getLong(markField));
+        walSeqByLog.put(logId, seq);
+        activities.add(appended(pipeline));
+    }
+
+    /** The entry an update appends, as it was logged. */
+    private static Document appended(AggregationUpdate pipeline) {
+        Document append = pipeline.toPipeline(Aggregation.DEFAULT_CONTEXT).get(1).get("$set", Document.class);
+        List<?> concat = append.get(HistoryKind.ACTIVITY.field, Document.class).getList("$concatArrays", Object.class);
+        Document stamped = (Document) ((List<?>) concat.get(1)).get(0);
+        return stamped.getList("$mergeObjects", Document.class).get(0).get("$literal", Document.class);
+    }
+
+    private synchronized int applied() {
+        return activities.size();
+    }
+
+    private void awaitApplied(int count) throws InterruptedException {
+        for (int i = 0; i < 200 && applied() < count; i++) {
+            Thread.sleep(25);
+        }
+        assertEquals(count, applied());
+    }
+
+    @Test
+    void twoNodesAppendingForTheSameUserKeepEveryEntry() throws Exception {
+        DurableAppendService a = node(nodeA);
+        for (int i = 0; i < 5; i++) {
+            a.append(HistoryKind.ACTIVITY, 7L, null, new User.HistoricalActivity());
+        }
+        awaitApplied(5);
+
+        // A second node, or this one restarted without its log directory, starts again at sequence 1
+        DurableAppendService b = node(nodeB);
+        for (int i = 0; i < 3; i++) {
+            b.append(HistoryKind.ACTIVITY, 7L, "ada", new User.HistoricalActivity());
+        }
+        awaitApplied(8);
+        // Each node advanced its own mark
+        assertEquals(2, walSeqByLog.size());
+        assertEquals(List.of(3L, 5L), walSeqByLog.values().stream().sorted().toList());
+    }
+
+    @Test
+    void rejectedEntryIsDeadLetteredWithoutHoldingUpTheRest() throws Exception {
+        DurableAppendService a = node(nodeA);
+        a.append(HistoryKind.ACTIVITY, 7L, null, new User.HistoricalActivity());
+        User.HistoricalActivity poison = new User.HistoricalActivity();
+        poison.setKilojoules(POISON);
+        a.append(HistoryKind.ACTIVITY, 7L, null, poison);
+        a.append(HistoryKind.ACTIVITY, 7L, null, new User.HistoricalActivity());
+        awaitApplied(2);
+        synchronized (this) {
+            assertEquals(1, deadLetters.size());
+            assertEquals(2L, deadLetters.get(0).getLong("seq"));
+        }
+        assertEquals(0, a.backlog());
+
+        a.append(HistoryKind.ACTIVITY, 7L, null, new User.HistoricalActivity());
+        awaitApplied(3);
+    }
+
+    @Test
+    void replayOfAppliedEntriesIsSkipped() throws Exception {
+        DurableAppendService a = node(nodeA);
+        a.append(HistoryKind.ACTIVITY, 7L, null, new User.HistoricalActivity());
+        awaitApplied(1);
+        // As if the checkpoint were lost: the same log replays the entry on restart
+        a.stop();
+        services.remove(a);
+        Files.deleteIfExists(nodeA.resolve("checkpoint"));
+        node(nodeA);
+        Thread.sleep(300);
+        assertEquals(1, applied());
+        assertEquals(Map.of(walSeqByLog.keySet().iterator().next(), 1L), walSeqByLog);
+    }
+}
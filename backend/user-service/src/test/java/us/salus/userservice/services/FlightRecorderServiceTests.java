@@ -0,0 +1,131 @@
+package us.salus.userservice.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.util.unit.DataSize;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+class FlightRecorderServiceTests {
+
+    private final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+
+    @TempDir
+    Path dir;
+
+    private FlightRecorderService flightRecorder;
+
+    private FlightRecorderService start(int maxDumps) {
+        flightRecorder = new FlightRecorderService(objectMapper, true, dir, Duration.ofMillis(50), Duration.ZERO,
+                Duration.ofMinutes(1), DataSize.ofMegabytes(20), maxDumps);
+        flightRecorder.init();
+        return flightRecorder;
+    }
+
+    @AfterEach
+    void shutdown() {
+        if (flightRecorder != null) {
+            flightRecorder.shutdown();
+        }
+    }
+
+    private static RequestProfile slowRequest() {
+        RequestProfile profile = RequestProfile.begin("GET", "/api/users/id/7/meals");
+        List<long[]> garbage = new ArrayList<>();
+        RequestProfile.timeStrava(() -> {
+            for (int i = 0; i < 2_000; i++) {
+                garbage.add(new long[1024]);
+            }
+            try {
+                Thread.sleep(80);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return garbage.size();
+        });
+        profile.finish("/api/users/id/{id}/meals", "7", 200, 1234);
+        return profile;
+    }
+
+    @Test
+    void slowRequestIsDumpedWithSummary() throws Exception {
+        start(5);
+        assertTrue(flightRecorder.isRecording());
+
+        RequestProfile profile = slowRequest();
+        assertTrue(profile.getStravaNanos() >= 80_000_000);
+        flightRecorder.onRequestFinished(profile);
+
+        Path summary = null;
+        for (int i = 0; i < 200 && summary == null; i++) {
+            try (var files = Files.list(dir)) {
+                summary = files.filter(file -> file.toString().endsWith(".json")).findFirst().orElse(null);
+            }
+            Thread.sleep(50);
+        }
+        assertTrue(summary != null, "no summary written");
+        JsonNode json = objectMapper.readTree(summary.toFile());
+        assertEquals("/api/users/id/{id}/meals", json.at("/request/route").asText());
+        assertEquals("7", json.at("/request/user").asText());
+        assertEquals(1234, json.at("/request/bytesWritten").asLong());
+        assertTrue(json.at("/request/stravaMillis").asDouble() >= 80);
+        assertTrue(json.at("/allocationSites").isArray());
+        // The request's own allocations are found in the chunks around it
+        assertTrue(json.at("/sampledAllocationBytes").asLong() > 0);
+        try (var files = Files.list(dir)) {
+            assertTrue(files.noneMatch(file -> file.toString().endsWith(".window") || file.toString().endsWith(".tmp")));
+        }
+
+        String name = flightRecorder.listDumps().get(0);
+        assertTrue(name.startsWith("slow-"));
+        assertTrue(flightRecorder.resolveDump(name).isPresent());
+        assertTrue(flightRecorder.resolveDump(name.replace(".jfr", ".json")).isPresent());
+    }
+
+    @Test
+    void fastRequestIsNotDumped() {
+        start(5);
+        RequestProfile profile = RequestProfile.begin("GET", "/api/users/id/7");
+        profile.finish("/api/users/id/{id}", "7", 200, 10);
+        flightRecorder.onRequestFinished(profile);
+        assertTrue(flightRecorder.listDumps().isEmpty());
+    }
+
+    @Test
+    void keepsOnlyNewestDumps() throws Exception {
+        start(2);
+        String first = flightRecorder.dumpNow();
+        flightRecorder.dumpNow();
+        String last = flightRecorder.dumpNow();
+
+        List<String> dumps = flightRecorder.listDumps();
+        assertEquals(2, dumps.size());
+        assertEquals(last, dumps.get(0));
+        assertFalse(dumps.contains(first));
+        assertFalse(Files.exists(dir.resolve(first)));
+        assertTrue(flightRecorder.resolveDump("../" + last).isEmpty());
+    }
+
+    @Test
+    void stopAndStartRecording() {
+        start(5);
+        assertTrue(flightRecorder.stop());
+        assertFalse(flightRecorder.isRecording());
+        assertFalse(flightRecorder.stop());
+        assertTrue(flightRecorder.start());
+        assertTrue(flightRecorder.getStatus().isRecording());
+    }
+}
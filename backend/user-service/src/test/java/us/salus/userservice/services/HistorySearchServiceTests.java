@@ -0,0 +1,178 @@
+package us.salus.userservice.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.List;
+
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationResults;
+import org.springframework.data.mongodb.core.aggregation.TypedAggregation;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+
+import us.salus.userservice.models.SearchResults;
+import us.salus.userservice.models.User;
+
+class HistorySearchServiceTests {
+
+    private static final ZonedDateTime DAY = ZonedDateTime.parse("2025-03-01T12:00:00Z");
+
+    private final MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+    private final MappingMongoConverter converter = DurableAppendServiceTests.converter();
+    private final HistorySearchService search = new HistorySearchService(mongoTemplate,
+            mock(UserRekeyService.class), 10, Duration.ofMinutes(10));
+    // What MongoDB holds for user 1, null if there is no such user
+    private User stored;
+    // Entries MongoDB sent to build or refresh the index
+    private int entriesLoaded;
+
+    @BeforeEach
+    void setUp() {
+        when(mongoTemplate.getConverter()).thenReturn(converter);
+        when(mongoTemplate.aggregate(any(TypedAggregation.class), eq(Document.class)))
+                .thenAnswer(invocation -> new AggregationResults<>(loadSince(project(invocation.getArgument(0))),
+                        new Document()));
+        when(mongoTemplate.aggregate(any(TypedAggregation.class), eq(User.class)))
+                .thenAnswer(invocation -> new AggregationResults<>(fetch(project(invocation.getArgument(0))),
+                        new Document()));
+    }
+
+    private static Document project(TypedAggregation<?> aggregation) {
+        return aggregation.toPipeline(Aggregation.DEFAULT_CONTEXT).get(1).get("$project", Document.class);
+    }
+
+    private static int from(Document project, String field) {
+        return (Integer) project.get(field, Document.class).get("$map", Document.class)
+                .get("input", Document.class).getList("$slice", Object.class).get(1);
+    }
+
+    private Document toDocument(Object entry) {
+        Document document = new Document();
+        converter.write(entry, document);
+        return document;
+    }
+
+    // Evaluates the index's load query against the stored user
+    private List<Document> loadSince(Document project) {
+        if (stored == null) {
+            return List.of();
+        }
+        List<User.ConversationEntry> conversations = stored.getConversationHistory();
+        List<User.HistoricalMeal> meals = stored.getHistoricalMeals();
+        List<Document> newConversations = conversations.stream().skip(from(project, "conversationHistory"))
+                .map(this::toDocument).toList();
+        List<Document> newMeals = meals.stream().skip(from(project, "historicalMeals"))
+                .map(this::toDocument).toList();
+        entriesLoaded += newConversations.size() + newMeals.size();
+        return List.of(new Document("conversationCount", conversations.size()).append("mealCount", meals.size())
+                .append("conversationHistory", newConversations).append("historicalMeals", newMeals));
+    }
+
+    // Evaluates the hit query: the entries at the requested positions
+    private List<User> fetch(Document project) {
+        if (stored == null) {
+            return List.of();
+        }
+        User entries = new User();
+        for (Document element : project.getList("conversationHistory", Document.class)) {
+            entries.getConversationHistory().add(
+                    stored.getConversationHistory().get((Integer) element.getList("$arrayElemAt", Object.class).get(1)));
+        }
+        for (Document element : project.getList("historicalMeals", Document.class)) {
+            entries.getHistoricalMeals().add(
+                    stored.getHistoricalMeals().get((Integer) element.getList("$arrayElemAt", Object.class).get(1)));
+        }
+        return List.of(entries);
+    }
+
+    private static User user() {
+        User user = new User(1, "ada", 30, 60, 170, "maintain");
+        user.getConversationHistory().add(new User.ConversationEntry(DAY, "Is oatmeal a good breakfast?", "Yes, oatmeal is filling.", 0));
+        user.getConversationHistory().add(new User.ConversationEntry(DAY.plusDays(1), "How far should I run?", "Start with 5 km.", 0));
+        user.getHistoricalMeals().add(new User.HistoricalMeal("Oatmeal with berries", DAY.plusDays(2), new User.HistoricalMeal.Macronutrients(), 0));
+        return user;
+    }
+
+    @Test
+    void ranksMatchingEntriesAndFilters() {
+        stored = user();
+
+        SearchResults results = search.search(1, "oatmeal", null, null, null, 0, 20).orElseThrow();
+        assertEquals(2, results.getTotal());
+        assertTrue(results.getHits().get(0).getScore() >= results.getHits().get(1).getScore());
+
+        SearchResults meals = search.search(1, "oatmeal", HistorySearchService.MEAL, null, null, 0, 20).orElseThrow();
+        assertEquals(1, meals.getTotal());
+        assertEquals("Oatmeal with berries", meals.getHits().get(0).getMeal().getName());
+
+        SearchResults ranged = search.search(1, "oatmeal", null, DAY.plusHours(1), null, 0, 20).orElseThrow();
+        assertEquals(1, ranged.getTotal());
+        assertTrue(search.search(1, "the", null, null, null, 0, 20).orElseThrow().getHits().isEmpty());
+    }
+
+    @Test
+    void pagesPastTheEndAreEmpty() {
+        stored = user();
+        stored.getConversationHistory().add(new User.ConversationEntry(DAY.plusDays(3), "Any thoughts?", null, 0));
+
+        SearchResults far = search.search(1, "oatmeal", null, null, null, 600_000_000, 4).orElseThrow();
+        assertEquals(2, far.getTotal());
+        assertTrue(far.getHits().isEmpty());
+        assertTrue(search.search(1, "oatmeal", null, null, null, 1, 2).orElseThrow().getHits().isEmpty());
+        // A missing response isn't indexed as the word "null"; the message still is
+        assertEquals(0, search.search(1, "null", null, null, null, 0, 20).orElseThrow().getTotal());
+        assertEquals(1, search.search(1, "thoughts", null, null, null, 0, 20).orElseThrow().getTotal());
+    }
+
+        @Test
+    void picksUpAppendsFromAnyNodeWithoutRebuilding() {
+        stored = user();
+        search.search(1, "run", null, null, null, 0, 20);
+        assertEquals(3, entriesLoaded);
+
+        // Appended by another node: the next search loads just this entry
+        stored.getConversationHistory().add(new User.ConversationEntry(DAY.plusDays(3), "Can I run tomorrow?", "Rest first.", 0));
+        SearchResults results = search.search(1, "run", null, null, null, 0, 20).orElseThrow();
+        assertEquals(2, results.getTotal());
+        assertEquals(4, entriesLoaded);
+        assertEquals("Can I run tomorrow?", results.getHits().stream()
+                .filter(hit -> hit.getTimestamp().equals(DAY.plusDays(3))).findFirst().orElseThrow()
+                .getConversation().getMessage());
+
+        search.invalidate(1);
+        search.search(1, "run", null, null, null, 0, 20);
+        assertEquals(8, entriesLoaded);
+    }
+
+    @Test
+    void replacedHistoryIsReindexed() {
+        stored = user();
+        search.search(1, "oatmeal", null, null, null, 0, 20);
+
+        // Deleted and re-imported elsewhere with a shorter history
+        stored = new User(1, "ada", 30, 60, 170, "maintain");
+        stored.getConversationHistory().add(new User.ConversationEntry(DAY, "Any soup ideas?", "Lentil soup.", 0));
+        assertEquals(0, search.search(1, "oatmeal", null, null, null, 0, 20).orElseThrow().getTotal());
+        assertEquals(1, search.search(1, "soup", null, null, null, 0, 20).orElseThrow().getTotal());
+    }
+
+    @Test
+    void unknownUserIsEmpty() {
+        assertTrue(search.search(2, "oatmeal", null, null, null, 0, 20).isEmpty());
+
+        stored = user();
+        search.search(1, "oatmeal", null, null, null, 0, 20);
+        stored = null;
+        assertTrue(search.search(1, "oatmeal", null, null, null, 0, 20).isEmpty());
+    }
+}
@@ -0,0 +1,66 @@
+package us.salus.userservice.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DuplicateKeyException;
+
+import com.auth0.jwt.interfaces.DecodedJWT;
+
+import us.salus.userservice.models.SigningKey;
+import us.salus.userservice.models.User;
+import us.salus.userservice.repositories.SigningKeyRepository;
+
+class JWTServiceTests {
+
+  // Stands in for the shared signing_keys collection
+  private final Map<String, SigningKey> store = new ConcurrentHashMap<>();
+
+  private SigningKeyRepository sharedRepository() {
+    SigningKeyRepository repository = mock(SigningKeyRepository.class);
+    when(repository.existsById(anyString())).thenAnswer(inv -> store.containsKey(inv.getArgument(0, String.class)));
+    when(repository.insert(any(SigningKey.class))).thenAnswer(inv -> {
+      SigningKey key = inv.getArgument(0);
+      if (store.putIfAbsent(key.getKid(), key) != null) {
+        throw new DuplicateKeyException(key.getKid());
+      }
+      return key;
+    });
+    when(repository.findByExpiresAtAfter(any(ZonedDateTime.class))).thenAnswer(inv -> store.values().stream()
+        .filter(key -> key.getExpiresAt().isAfter(inv.getArgument(0, ZonedDateTime.class)))
+        .toList());
+    return repository;
+  }
+
+  private JWTService replica() {
+    KeyRingService keyRing = new KeyRingService(sharedRepository(), Duration.ofDays(7), Duration.ofDays(7),
+        Duration.ofHours(1));
+    return new JWTService(keyRing, Duration.ofDays(7));
+  }
+
+  @Test
+  void tokenIssuedByOneReplicaVerifiesOnAnother() {
+    JWTService issuer = replica();
+    JWTService verifier = replica();
+    User user = new User();
+    user.setId(42);
+
+    String token = issuer.createJWT(user);
+    DecodedJWT jwt = verifier.verifyJWT(token);
+
+    assertNotNull(jwt.getKeyId());
+    assertEquals(42L, jwt.getClaim("user_id").asLong());
+    assertNotNull(jwt.getExpiresAt());
+  }
+
+}
@@ -0,0 +1,55 @@
+package us.salus.userservice.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.ReadPreference;
+
+import us.salus.userservice.services.ReadRouter.ReadOperation;
+
+class ReadRouterTests {
+
+    private final ReadRouter router = new ReadRouter(List.of("history-range", "analytics"), Duration.ofSeconds(90));
+
+    @Test
+    void onlyDesignatedOperationsGoToSecondaries() {
+        assertEquals(ReadPreference.secondaryPreferred(90, TimeUnit.SECONDS),
+                router.preferenceFor(ReadOperation.HISTORY_RANGE, 1L));
+        assertEquals(ReadPreference.primary(), router.preferenceFor(ReadOperation.USER_LIST));
+        assertEquals(ReadPreference.primary(), router.preferenceFor(ReadOperation.HISTORY, 1L));
+    }
+
+    @Test
+    void rejectsStalenessMongoWouldRefuse() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new ReadRouter(List.of("history"), Duration.ofSeconds(30)));
+    }
+
+    @Test
+    void recentWriterReadsFromPrimary() {
+        router.markWritten(7L);
+
+        assertEquals(ReadPreference.primary(), router.preferenceFor(ReadOperation.HISTORY_RANGE, 7L));
+        assertEquals(ReadPreference.secondaryPreferred(90, TimeUnit.SECONDS),
+                router.preferenceFor(ReadOperation.HISTORY_RANGE, 8L));
+    }
+
+    @Test
+    void pinnedRequestReadsFromPrimary() {
+        router.pinRequestToPrimary();
+        try {
+            assertEquals(ReadPreference.primary(), router.preferenceFor(ReadOperation.ANALYTICS));
+        } finally {
+            router.clearRequest();
+        }
+        assertEquals(ReadPreference.secondaryPreferred(90, TimeUnit.SECONDS),
+                router.preferenceFor(ReadOperation.ANALYTICS));
+    }
+
+}
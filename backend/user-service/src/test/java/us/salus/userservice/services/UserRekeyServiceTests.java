@@ -0,0 +1,82 @@
+package us.salus.userservice.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.List;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+
+import us.salus.userservice.models.User;
+
+class UserRekeyServiceTests {
+
+    private static final String NEW_COLLECTION = "users_by_id";
+
+    private final MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+    private final UserRekeyService rekey = new UserRekeyService(mongoTemplate, true, 10, Duration.ZERO);
+
+    private static Document legacy(String name, long id) {
+        return new Document("_id", name).append("id", id).append("age", 30)
+                .append("historicalMeals", List.of(new Document("name", "Oatmeal")));
+    }
+
+    @Test
+    void rekeyMovesNameOutOfTheKey() {
+        Document rekeyed = UserRekeyService.rekey(legacy("ada", 7));
+
+        assertEquals(7L, rekeyed.get("_id"));
+        assertEquals("ada", rekeyed.get("name"));
+        assertNull(rekeyed.get("id"));
+        assertEquals(30, rekeyed.get("age"));
+        assertEquals(List.of(new Document("name", "Oatmeal")), rekeyed.get("historicalMeals"));
+        assertNull(UserRekeyService.rekey(new Document("_id", "no-id")));
+    }
+
+    @Test
+    void lookupMovesLegacyUserBeforeReading() {
+        when(mongoTemplate.getCollectionName(User.class)).thenReturn(NEW_COLLECTION);
+        when(mongoTemplate.findOne(any(Query.class), eq(Document.class), eq(UserRekeyService.LEGACY_COLLECTION)))
+                .thenReturn(legacy("ada", 7));
+
+        rekey.ensureMigrated("name", "ada");
+
+        verify(mongoTemplate).insert(UserRekeyService.rekey(legacy("ada", 7)), NEW_COLLECTION);
+        verify(mongoTemplate).remove(any(Query.class), eq(UserRekeyService.LEGACY_COLLECTION));
+        verify(mongoTemplate, never()).save(any(), eq(UserRekeyService.CONFLICTS_COLLECTION));
+    }
+
+    @Test
+    void differentUserWithSameIdIsKeptAsConflict() {
+        Document loser = legacy("bob", 7);
+        when(mongoTemplate.getCollectionName(User.class)).thenReturn(NEW_COLLECTION);
+        when(mongoTemplate.find(any(Query.class), eq(Document.class), eq(UserRekeyService.LEGACY_COLLECTION)))
+                .thenReturn(List.of(loser));
+        when(mongoTemplate.insert(any(Document.class), eq(NEW_COLLECTION))).thenThrow(new DuplicateKeyException("dup"));
+        when(mongoTemplate.findById(7L, Document.class, NEW_COLLECTION))
+                .thenReturn(UserRekeyService.rekey(legacy("ada", 7)));
+
+        assertEquals(1, rekey.backfillBatch());
+
+        verify(mongoTemplate).save(loser, UserRekeyService.CONFLICTS_COLLECTION);
+        verify(mongoTemplate).remove(any(Query.class), eq(UserRekeyService.LEGACY_COLLECTION));
+    }
+
+    @Test
+    void disabledRekeyNeverTouchesLegacyCollection() {
+        new UserRekeyService(mongoTemplate, false, 10, Duration.ZERO).ensureMigrated("id", 7L);
+        verifyNoInteractions(mongoTemplate);
+    }
+}
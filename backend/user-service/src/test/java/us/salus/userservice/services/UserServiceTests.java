@@ -0,0 +1,106 @@
+package us.salus.userservice.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.List;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationResults;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.query.Query;
+
+import us.salus.userservice.models.HistoryChanges;
+import us.salus.userservice.models.User;
+import us.salus.userservice.repositories.UserRepository;
+
+class UserServiceTests {
+
+    private final UserRepository userRepository = mock(UserRepository.class);
+    private final MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+    private final UserRekeyService userRekey = mock(UserRekeyService.class);
+    private final UserService userService = new UserService(userRepository, mongoTemplate,
+            new ReadRouter(List.of(), Duration.ofSeconds(90)),
+            new HistorySearchService(mongoTemplate, userRekey, 10, Duration.ofMinutes(10)), userRekey);
+
+    @Test
+    void appendsAreSingleUpdatesThatAssignTheSequenceNumber() {
+        when(mongoTemplate.getConverter()).thenReturn(DurableAppendServiceTests.converter());
+        User stored = new User(1, "ada", 30, 60, 170, "maintain");
+        stored.setSyncSeq(4);
+        stored.getConversationHistory().add(new User.ConversationEntry(ZonedDateTime.now(), "hi", "hello", 4));
+        ArgumentCaptor<AggregationUpdate> update = ArgumentCaptor.forClass(AggregationUpdate.class);
+        when(mongoTemplate.findAndModify(any(Query.class), update.capture(), any(FindAndModifyOptions.class),
+                eq(User.class))).thenReturn(stored);
+
+        User.ConversationEntry added = userService.addConversationEntryById(1,
+                new User.ConversationEntry(ZonedDateTime.now(), "hi", "hello", 0));
+
+        // The stored entry, with the number MongoDB gave it, not the request's copy
+        assertEquals(4, added.getSeq());
+        List<Document> pipeline = update.getValue().toPipeline(Aggregation.DEFAULT_CONTEXT);
+        assertEquals(List.of("syncSeq"), List.copyOf(pipeline.get(0).get("$set", Document.class).keySet()));
+        assertEquals(List.of("conversationHistory"), List.copyOf(pipeline.get(1).get("$set", Document.class).keySet()));
+        verify(userRepository, never()).save(any());
+    }
+
+    @Test
+    void createInsertsAfterMovingAnyLegacyUser() {
+        User user = new User(1, "ada", 30, 60, 170, "maintain");
+        when(userRepository.insert(user)).thenThrow(new DuplicateKeyException("E11000 duplicate key"));
+
+        // An existing user, legacy or not, is never overwritten
+        assertThrows(DuplicateKeyException.class, () -> userService.createUser(user));
+        InOrder order = inOrder(userRekey, userRepository);
+        order.verify(userRekey).ensureMigrated("id", 1L);
+        order.verify(userRepository).insert(user);
+        verify(userRepository, never()).save(any());
+    }
+
+    @Test
+    void appendsToMissingUsersReturnNull() {
+        when(mongoTemplate.getConverter()).thenReturn(DurableAppendServiceTests.converter());
+
+        assertNull(userService.addHistoricalMealById(1, new User.HistoricalMeal()));
+        assertNull(userService.addHistoricalActivity("nobody", new User.HistoricalActivity()));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void changesAreFilteredInTheDatabase() {
+        User projected = new User();
+        projected.setSyncSeq(9);
+        projected.setHistoricalMeals(null);
+        ArgumentCaptor<Aggregation> aggregation = ArgumentCaptor.forClass(Aggregation.class);
+        when(mongoTemplate.aggregate(aggregation.capture(), eq(User.class), eq(User.class)))
+                .thenReturn(new AggregationResults<>(List.of(projected), new Document()));
+
+        HistoryChanges changes = userService.getChangesSince(1, 5).orElseThrow();
+
+        assertEquals(5, changes.getSince());
+        assertEquals(9, changes.getHighWaterMark());
+        assertEquals(List.of(), changes.getHistoricalMeals());
+        Document project = aggregation.getValue().toPipeline(Aggregation.DEFAULT_CONTEXT).get(1);
+        Document filter = project.get("$project", Document.class)
+                .get("historicalMeals", Document.class).get("$filter", Document.class);
+        assertEquals(new Document("$gt", List.of("$$entry.seq", 5L)), filter.get("cond"));
+        verify(mongoTemplate).aggregate(any(Aggregation.class), eq(User.class), eq(User.class));
+    }
+}
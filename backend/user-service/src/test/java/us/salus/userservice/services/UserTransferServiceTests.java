@@ -0,0 +1,288 @@
+package us.salus.userservice.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.convert.UpdateMapper;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import us.salus.userservice.MongoConfig;
+import us.salus.userservice.models.User;
+import us.salus.userservice.services.DurableAppendService.HistoryKind;
+
+class UserTransferServiceTests {
+
+    private static final int BATCH_SIZE = 3;
+    private static final int MAX_LINE_LENGTH = 1024;
+    private static final ZonedDateTime START = ZonedDateTime.of(2025, 3, 1, 8, 0, 0, 0, ZoneOffset.UTC);
+
+    private final MongoMappingContext mappingContext = new MongoMappingContext();
+    private final MappingMongoConverter converter = converter();
+    private final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+    private final MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+    private final UserTransferService transfer = new UserTransferService(mongoTemplate,
+            mock(UserRekeyService.class), mock(HistorySearchService.class), objectMapper, BATCH_SIZE,
+            MAX_LINE_LENGTH);
+
+    private MappingMongoConverter converter() {
+        MongoCustomConversions conversions = new MongoConfig().customConversions();
+        mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+        mappingContext.afterPropertiesSet();
+        MappingMongoConverter converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+        converter.setCustomConversions(conversions);
+        converter.afterPropertiesSet();
+        return converter;
+    }
+
+    /** The next sequence number for {@code user}, as the server's appends assign it. */
+    private static long nextSeq(User user) {
+        user.setSyncSeq(user.getSyncSeq() + 1);
+        return user.getSyncSeq();
+    }
+
+    private User user() {
+        User user = new User(7, "ada", 30, 60, 170, "maintain");
+        for (int i = 0; i < 10; i++) {
+            user.getConversationHistory().add(new User.ConversationEntry(START.plusHours(i), "question " + i,
+                    "$" + i + " answer", nextSeq(user)));
+            user.getHistoricalCalories().add(new User.HistoricalCalories(START.plusDays(i), 400 + i, 2000 + i,
+                    nextSeq(user)));
+        }
+        User.HistoricalMeal meal = new User.HistoricalMeal();
+        meal.setName("Oatmeal");
+        meal.setTimestamp(START);
+        meal.getMacronutrients().setCarbs(54);
+        meal.setSeq(nextSeq(user));
+        user.getHistoricalMeals().add(meal);
+        User.HistoricalActivity activity = new User.HistoricalActivity();
+        activity.setName("Morning run");
+        activity.setStartDate(START);
+        activity.setKilojoules(850);
+        activity.setSeq(nextSeq(user));
+        user.getHistoricalActivities().add(activity);
+        return user;
+    }
+
+    /** Answers the export's per-list $unwind aggregations from {@code user} as MongoDB would. */
+    private void serveExport(User user) {
+        Document stored = new Document();
+        converter.write(user, stored);
+        User profile = new User(user.getId(), user.getName(), user.getAge(), user.getWeight(), user.getHeight(),
+                user.getFitnessGoal());
+        profile.setSyncSeq(user.getSyncSeq());
+        when(mongoTemplate.findOne(any(Query.class), eq(User.class))).thenReturn(profile);
+        when(mongoTemplate.getConverter()).thenReturn(converter);
+        when(mongoTemplate.aggregateStream(any(Aggregation.class), eq(User.class), eq(Document.class)))
+                .thenAnswer(invocation -> {
+                    Aggregation aggregation = invocation.getArgument(0);
+                    String field = aggregation.toPipeline(Aggregation.DEFAULT_CONTEXT).get(2)
+                            .getString("$unwind").substring(1);
+                    return stored.getList(field, Document.class).stream().map(entry -> new Document(field, entry));
+                });
+    }
+
+    /** Rebuilds the imported user from the insert and the $push updates the import sends. */
+    private User captureImport(List<Integer> batchSizes) {
+        User imported = new User();
+        doAnswer(invocation -> {
+            User inserted = invocation.getArgument(0);
+            imported.setName(inserted.getName());
+            imported.setId(inserted.getId());
+            imported.setAge(inserted.getAge());
+            imported.setSyncSeq(inserted.getSyncSeq());
+            return inserted;
+        }).when(mongoTemplate).insert(any(User.class));
+        UpdateMapper updateMapper = new UpdateMapper(converter);
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(User.class))).thenAnswer(invocation -> {
+            Update update = invocation.getArgument(1);
+            Document mapped = updateMapper.getMappedObject(update.getUpdateObject(),
+                    mappingContext.getPersistentEntity(User.class));
+            imported.setSyncSeq(Math.max(imported.getSyncSeq(), mapped.get("$max", Document.class).getLong("syncSeq")));
+            Document pushes = mapped.get("$push", Document.class);
+            int size = 0;
+            for (HistoryKind kind : HistoryKind.values()) {
+                Document push = pushes.get(kind.field, Document.class);
+                if (push != null) {
+                    for (Document entry : push.getList("$each", Document.class)) {
+                        addTo(imported, kind, converter.read(kind.type, entry));
+                        size++;
+                    }
+                }
+            }
+            batchSizes.add(size);
+            return null;
+        });
+        return imported;
+    }
+
+    private static void addTo(User user, HistoryKind kind, Object entry) {
+        switch (kind) {
+            case CONVERSATION -> user.getConversationHistory().add((User.ConversationEntry) entry);
+            case ACTIVITY -> user.getHistoricalActivities().add((User.HistoricalActivity) entry);
+            case CALORIES -> user.getHistoricalCalories().add((User.HistoricalCalories) entry);
+            case MEAL -> user.getHistoricalMeals().add((User.HistoricalMeal) entry);
+        }
+    }
+
+    private static void renumber(User user) {
+        long seq = 0;
+        for (User.ConversationEntry entry : user.getConversationHistory()) {
+            entry.setSeq(++seq);
+        }
+        for (User.HistoricalActivity entry : user.getHistoricalActivities()) {
+            entry.setSeq(++seq);
+        }
+        for (User.HistoricalCalories entry : user.getHistoricalCalories()) {
+            entry.setSeq(++seq);
+        }
+        for (User.HistoricalMeal entry : user.getHistoricalMeals()) {
+            entry.setSeq(++seq);
+        }
+    }
+
+    private void assertRoundTrip(boolean gzip) throws Exception {
+        User original = user();
+        serveExport(original);
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        transfer.export(transfer.findProfile("id", 7L).orElseThrow(), archive, gzip);
+
+        List<Integer> batchSizes = new ArrayList<>();
+        User imported = captureImport(batchSizes);
+        assertEquals(7L, transfer.importArchive(new ByteArrayInputStream(archive.toByteArray()), gzip));
+
+        assertEquals(original.getId(), imported.getId());
+        // The import numbers entries itself, in archive order: conversations, activities, calories, meals
+        assertEquals(original.getSyncSeq(), imported.getSyncSeq());
+        renumber(original);
+        assertEquals(original.getConversationHistory(), imported.getConversationHistory());
+        assertEquals(original.getHistoricalActivities(), imported.getHistoricalActivities());
+        assertEquals(original.getHistoricalCalories(), imported.getHistoricalCalories());
+        assertEquals(original.getHistoricalMeals(), imported.getHistoricalMeals());
+        // 22 entries in batches of at most 3
+        assertEquals(8, batchSizes.size());
+        assertTrue(batchSizes.stream().allMatch(size -> size <= BATCH_SIZE));
+    }
+
+    @Test
+    void roundTripsPlainArchive() throws Exception {
+        assertRoundTrip(false);
+    }
+
+    @Test
+    void roundTripsGzipArchive() throws Exception {
+        assertRoundTrip(true);
+    }
+
+    @Test
+    void archiveIsOneRecordPerLine() throws Exception {
+        serveExport(user());
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        transfer.export(transfer.findProfile("name", "ada").orElseThrow(), archive, false);
+
+        String[] lines = archive.toString(StandardCharsets.UTF_8).split("\n");
+        assertEquals(23, lines.length);
+        assertTrue(lines[0].startsWith("{\"kind\":\"USER\""));
+        assertTrue(lines[1].startsWith("{\"kind\":\"CONVERSATION\""));
+    }
+
+    @Test
+    void importIgnoresArchiveSequenceNumbers() throws Exception {
+        User imported = captureImport(new ArrayList<>());
+        when(mongoTemplate.getConverter()).thenReturn(converter);
+        String archive = "{\"kind\":\"USER\",\"data\":{\"name\":\"ada\",\"id\":7,\"syncSeq\":900}}\n"
+                + "{\"kind\":\"MEAL\",\"data\":{\"name\":\"Soup\",\"seq\":500}}\n";
+
+        transfer.importArchive(new ByteArrayInputStream(archive.getBytes(StandardCharsets.UTF_8)), false);
+
+        assertEquals(1, imported.getSyncSeq());
+        assertEquals(1, imported.getHistoricalMeals().get(0).getSeq());
+    }
+
+    @Test
+    void linesReadLikeBufferedReaderUpToTheLimit() throws Exception {
+        UserTransferService.LineReader reader = new UserTransferService.LineReader(
+                new StringReader("one\r\n\ntwo\nthree"), 5);
+        assertEquals("one", reader.readLine());
+        assertEquals("", reader.readLine());
+        assertEquals("two", reader.readLine());
+        assertEquals("three", reader.readLine());
+        assertNull(reader.readLine());
+
+        UserTransferService.LineReader tooLong = new UserTransferService.LineReader(
+                new StringReader("short\n" + "x".repeat(20_000) + "\n"), 5);
+        assertEquals("short", tooLong.readLine());
+        assertThrows(IllegalArgumentException.class, tooLong::readLine);
+    }
+
+    @Test
+    void overlongImportRecordIsRejected() {
+        captureImport(new ArrayList<>());
+        when(mongoTemplate.getConverter()).thenReturn(converter);
+        String archive = "{\"kind\":\"USER\",\"data\":{\"name\":\"ada\",\"id\":7}}\n"
+                + "{\"kind\":\"MEAL\",\"data\":{\"name\":\"" + "x".repeat(MAX_LINE_LENGTH) + "\"}}\n";
+
+        assertThrows(IllegalArgumentException.class, () -> transfer.importArchive(
+                new ByteArrayInputStream(archive.getBytes(StandardCharsets.UTF_8)), false));
+        verify(mongoTemplate).remove(any(Query.class), eq(User.class));
+    }
+
+    @Test
+    void corruptGzipAndInvalidIdsAreRejected() throws Exception {
+        captureImport(new ArrayList<>());
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write("{\"kind\":\"USER\",\"data\":{\"name\":\"ada\",\"id\":7}}\n".getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] truncated = Arrays.copyOf(compressed.toByteArray(), compressed.size() - 10);
+
+        assertThrows(IllegalArgumentException.class, () -> transfer.importArchive(
+                new ByteArrayInputStream(truncated), true));
+        assertThrows(IllegalArgumentException.class, () -> transfer.importArchive(
+                new ByteArrayInputStream("not gzip".getBytes(StandardCharsets.UTF_8)), true));
+        assertThrows(IllegalArgumentException.class, () -> transfer.importArchive(new ByteArrayInputStream(
+                "{\"kind\":\"USER\",\"data\":{\"name\":\"ada\",\"id\":0}}\n".getBytes(StandardCharsets.UTF_8)), false));
+    }
+
+    @Test
+    void malformedImportLeavesNothingBehind() {
+        captureImport(new ArrayList<>());
+        String archive = "{\"kind\":\"USER\",\"data\":{\"name\":\"ada\",\"id\":7}}\n{\"kind\":\"WORKOUT\",\"data\":{}}\n";
+
+        assertThrows(IllegalArgumentException.class, () -> transfer.importArchive(
+                new ByteArrayInputStream(archive.getBytes(StandardCharsets.UTF_8)), false));
+        verify(mongoTemplate).remove(any(Query.class), eq(User.class));
+        assertThrows(IllegalArgumentException.class, () -> transfer.importArchive(
+                new ByteArrayInputStream("{\"kind\":\"MEAL\",\"data\":{}}\n".getBytes(StandardCharsets.UTF_8)), false));
+    }
+}
@@ -0,0 +1,94 @@
+package us.salus.userservice.services;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class WriteAheadLogTests {
+
+    @TempDir
+    Path dir;
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void replaysRecordsAfterCheckpointAcrossRestarts() throws Exception {
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 1024)) {
+            for (int i = 1; i <= 5; i++) {
+                assertEquals(i, wal.append(bytes("entry-" + i)));
+            }
+            wal.checkpoint(2);
+        }
+
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 1024)) {
+            List<WriteAheadLog.Record> records = wal.replay();
+            assertEquals(List.of(3L, 4L, 5L), records.stream().map(WriteAheadLog.Record::seq).toList());
+            assertArrayEquals(bytes("entry-3"), records.get(0).payload());
+            // Numbering continues after the replayed records
+            assertEquals(6, wal.append(bytes("entry-6")));
+        }
+    }
+
+    @Test
+    void stopsAtTornRecord() throws Exception {
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 1024)) {
+            wal.append(bytes("kept"));
+            wal.append(bytes("torn"));
+        }
+        Path segment;
+        try (Stream<Path> files = Files.list(dir)) {
+            segment = files.filter(p -> p.getFileName().toString().endsWith(".wal")).findFirst().orElseThrow();
+        }
+        // Corrupt the last byte of the second record's payload
+        int secondPayloadEnd = 2 * WriteAheadLog.HEADER_BYTES + 8;
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(secondPayloadEnd - 1);
+            file.write('X');
+        }
+
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 1024)) {
+            assertEquals(List.of(1L), wal.replay().stream().map(WriteAheadLog.Record::seq).toList());
+        }
+    }
+
+    @Test
+    void checkpointDeletesAppliedSegments() throws Exception {
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 64)) {
+            // 16 header + 40 payload bytes: one record per segment
+            for (int i = 0; i < 4; i++) {
+                wal.append(new byte[40]);
+            }
+            wal.checkpoint(3);
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(1, files.filter(p -> p.getFileName().toString().endsWith(".wal")).count());
+        }
+    }
+
+
+    @Test
+    void logIdSurvivesRestartsButDiffersBetweenLogs(@TempDir Path other) throws Exception {
+        String id;
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 1024)) {
+            id = wal.getLogId();
+        }
+        try (WriteAheadLog wal = new WriteAheadLog(dir, 1024)) {
+            assertEquals(id, wal.getLogId());
+        }
+        try (WriteAheadLog wal = new WriteAheadLog(other, 1024)) {
+            assertNotEquals(id, wal.getLogId());
+        }
+    }
+}